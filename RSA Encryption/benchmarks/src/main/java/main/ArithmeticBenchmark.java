@@ -0,0 +1,91 @@
+package main;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The int arithmetic of the demonstration keys, with and without recording a trace.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArithmeticBenchmark {
+
+  @Param({ "10", "14" })
+  public int modulusBits;
+
+  @Param({ "false", "true" })
+  public boolean trace;
+
+  private final TraceBuffer buffer = new TraceBuffer();
+  private int n;
+  private int phiOfN;
+  private int e;
+  private int d;
+  private int base;
+  private int prime;
+  private int witness;
+
+  @Setup
+  public void setUp() {
+    Random randGen = BenchmarkInputs.random();
+    int p, q;
+    do {
+      p = BenchmarkInputs.randomPrime(randGen, modulusBits / 2);
+      q = BenchmarkInputs.randomPrime(randGen, modulusBits - modulusBits / 2);
+    } while (p == q);
+    n = p * q;
+    phiOfN = (p - 1) * (q - 1);
+    Integer inverse = null;
+    for (e = 3; inverse == null; e += 2) {
+      inverse = RSASystem.extendedEuclideanAlgorithm(phiOfN, e);
+    }
+    e -= 2;
+    d = inverse < 0 ? inverse + phiOfN : inverse;
+    base = randGen.nextInt(n - 2) + 2;
+    prime = BenchmarkInputs.randomPrime(randGen, modulusBits);
+    witness = randGen.nextInt(prime - 2) + 1;
+  }
+
+  @Benchmark
+  public int fastExponentiation() {
+    if (trace) {
+      buffer.clear();
+      return RSASystem.fastExponentiation(buffer, base, d, n);
+    }
+    return RSASystem.fastExponentiation(base, d, n);
+  }
+
+  @Benchmark
+  public boolean isPerhapsPrime() {
+    if (trace) {
+      buffer.clear();
+      return RSASystem.isPerhapsPrime(buffer, witness, prime - 1);
+    }
+    return RSASystem.isPerhapsPrime(witness, prime - 1);
+  }
+
+  @Benchmark
+  public Integer extendedEuclideanAlgorithm() {
+    if (trace) {
+      buffer.clear();
+      return RSASystem.extendedEuclideanAlgorithm(buffer, phiOfN, e);
+    }
+    return RSASystem.extendedEuclideanAlgorithm(phiOfN, e);
+  }
+}
@@ -0,0 +1,80 @@
+package main;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Screening and exponentiating many odd int candidates, one at a time and in lanes. Times are
+ * per candidate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OperationsPerInvocation(BatchExponentiationBenchmark.COUNT)
+public class BatchExponentiationBenchmark {
+
+  static final int COUNT = 4096;
+
+  @Param({ "16", "31" })
+  public int candidateBits;
+
+  private final int[] witnesses = new int[COUNT];
+  private final int[] exponents = new int[COUNT];
+  private final int[] candidates = new int[COUNT];
+  private final int[] results = new int[COUNT];
+
+  @Setup
+  public void setUp() {
+    Random randGen = BenchmarkInputs.random();
+    for (int i = 0; i < COUNT; i++) {
+      int candidate = (randGen.nextInt() >>> (32 - candidateBits)) | 1 << (candidateBits - 2) | 1;
+      candidates[i] = candidate;
+      exponents[i] = candidate - 1;
+      witnesses[i] = randGen.nextInt(candidate - 2) + 1;
+    }
+  }
+
+  @Benchmark
+  public boolean[] screenOneAtATime() {
+    boolean[] res = new boolean[COUNT];
+    for (int i = 0; i < COUNT; i++) {
+      res[i] = RSASystem.isPerhapsPrime(witnesses[i], exponents[i]);
+    }
+    return res;
+  }
+
+  @Benchmark
+  public boolean[] screenInLanes() {
+    return BatchExponentiation.isPerhapsPrime(witnesses, exponents);
+  }
+
+  @Benchmark
+  public int[] powOneAtATime() {
+    for (int i = 0; i < COUNT; i++) {
+      results[i] = ModularArithmetic.pow(witnesses[i], exponents[i], candidates[i]);
+    }
+    return results;
+  }
+
+  @Benchmark
+  public int[] powInLanes() {
+    BatchExponentiation.pow(witnesses, exponents, candidates, results);
+    return results;
+  }
+}
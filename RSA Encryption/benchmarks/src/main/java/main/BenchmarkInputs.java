@@ -0,0 +1,35 @@
+package main;
+
+import java.util.Random;
+
+/**
+ * Reproducible inputs shared by the benchmarks.
+ */
+final class BenchmarkInputs {
+
+  static final long SEED = 42;
+
+  private BenchmarkInputs() {
+  }
+
+  /**
+   * @return A fresh random number generator that always produces the same numbers.
+   */
+  static Random random() {
+    return RandomStreams.seeded(SEED).stream(0);
+  }
+
+  /**
+   * Draws random numbers until one of the given size is prime.
+   * @param randGen Random number generator.
+   * @param bits The size of the prime in bits, 2 <= bits <= 31
+   * @return A prime with exactly the given number of bits.
+   */
+  static int randomPrime(Random randGen, int bits) {
+    int p;
+    do {
+      p = (randGen.nextInt() >>> (32 - bits)) | 1 << (bits - 1) | 1;
+    } while (!MillerRabin.isPrime(p));
+    return p;
+  }
+}
@@ -0,0 +1,58 @@
+package main;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The certificate hash on its bit-string form and on bytes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBenchmark {
+
+  //14 bytes is the size of a certificate
+  @Param({ "14", "1024", "65536" })
+  public int messageBytes;
+
+  private final XorFoldHash hash = new XorFoldHash();
+  private byte[] message;
+  private String bits;
+
+  @Setup
+  public void setUp() {
+    Random randGen = BenchmarkInputs.random();
+    message = new byte[messageBytes];
+    randGen.nextBytes(message);
+    StringBuilder sb = new StringBuilder(messageBytes * 8);
+    for (byte b : message) {
+      RSASystem.appendBinaryString(sb, b & 0xFF, 8);
+    }
+    bits = sb.toString();
+  }
+
+  @Benchmark
+  public String computeHash() {
+    return RSASystem.computeHash(bits);
+  }
+
+  @Benchmark
+  public int xorFoldHash() {
+    return hash.update(message).digest();
+  }
+}
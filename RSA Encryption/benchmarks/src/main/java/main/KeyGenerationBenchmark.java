@@ -0,0 +1,56 @@
+package main;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Prime and key generation on the int path of the demonstration, with moduli of
+ * RSASystem.SMALL_MODULUS_BITS. Only findPrimesAndKeyPairs records and renders tables, so trace is
+ * a parameter of that benchmark alone. {@link LargeKeyGenerationBenchmark} covers RSAKeyGenerator.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyGenerationBenchmark {
+
+  private RunContext ctx;
+
+  /**
+   * Whether the tables are recorded and rendered.
+   */
+  @State(Scope.Thread)
+  public static class Trace {
+    @Param({ "false", "true" })
+    public boolean trace;
+  }
+
+  @Setup
+  public void setUp() {
+    ctx = new RunContext(BenchmarkInputs.random());
+  }
+
+  @Benchmark
+  public Object getTestedPrime() {
+    return RSASystem.getTestedPrime(ctx);
+  }
+
+  @Benchmark
+  public Object findPrimesAndKeyPairs(Trace trace) {
+    ctx.sb.setLength(0);
+    return RSASystem.findPrimesAndKeyPairs(ctx, trace.trace);
+  }
+}
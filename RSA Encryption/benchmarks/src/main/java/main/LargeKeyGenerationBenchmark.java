@@ -0,0 +1,47 @@
+package main;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Prime and key generation with RSAKeyGenerator, which has no trace.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LargeKeyGenerationBenchmark {
+
+  @Param({ "1024", "2048" })
+  public int modulusBits;
+
+  private RSAKeyGenerator generator;
+
+  @Setup
+  public void setUp() {
+    generator = new RSAKeyGenerator(modulusBits, BenchmarkInputs.random());
+  }
+
+  @Benchmark
+  public Object getTestedPrime() {
+    return generator.getTestedPrime(modulusBits / 2);
+  }
+
+  @Benchmark
+  public Object generate() {
+    return generator.generate();
+  }
+}
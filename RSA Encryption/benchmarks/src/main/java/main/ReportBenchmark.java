@@ -0,0 +1,48 @@
+package main;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One complete run of printAll, with the tables or without any trace.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReportBenchmark {
+
+  @Param({ "false", "true" })
+  public boolean trace;
+
+  private RandomStreams streams;
+  private long run;
+
+  @Setup
+  public void setUp() {
+    streams = RandomStreams.seeded(BenchmarkInputs.SEED);
+  }
+
+  @Benchmark
+  public String printAll() {
+    RunContext ctx = new RunContext(streams.stream(run++));
+    if (!trace) {
+      ctx.setTraceListener(null);
+    }
+    RSASystem.printAll(ctx);
+    return ctx.getOutput();
+  }
+}
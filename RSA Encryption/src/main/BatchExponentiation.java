@@ -0,0 +1,231 @@
+package main;
+
+/**
+ * Modular exponentiation and primality screening for arrays of int-sized inputs. The inputs are
+ * processed in blocks of {@link #LANES} that run in lockstep: every lane does the same Montgomery
+ * squarings and multiplications at the same time, with R = 2^32 so that each product and
+ * reduction needs only long multiplications and shifts instead of a division. The lanes of a
+ * block are independent, so their multiplications overlap in the pipeline instead of waiting on
+ * each other like the steps of a single exponentiation do. Inputs with an even modulus or a
+ * modulus of one cannot use Montgomery form; they are computed one at a time and the others are
+ * packed into the lanes.
+ * Every result is the same as that of the single-value methods of {@link RSASystem}.
+ */
+public class BatchExponentiation {
+
+  public static final int LANES = 8;
+
+  private static final long LOW_32_BITS = 0xFFFFFFFFL;
+
+  private BatchExponentiation() {
+  }
+
+  /**
+   * Computes results[i] = bases[i]^exponents[i] mod moduli[i] for every i.
+   * @param bases The bases.
+   * @param exponents The exponents, each at least zero.
+   * @param moduli The moduli, each greater than zero.
+   * @param results The array the results are written to, at least as long as the bases.
+   */
+  public static void pow(int[] bases, int[] exponents, int[] moduli, int[] results) {
+    int count = bases.length;
+    if (exponents.length != count || moduli.length != count || results.length < count) {
+      throw new IllegalArgumentException("The arrays must have the same length");
+    }
+    Lanes lanes = new Lanes();
+    for (int i = 0; i < count; i++) {
+      if (exponents[i] < 0) {
+        throw new IllegalArgumentException("The exponent must not be negative");
+      }
+      if (!lanes.add(i, moduli[i], bases[i], exponents[i])) {
+        results[i] = ModularArithmetic.pow(bases[i], exponents[i], moduli[i]);
+      } else if (lanes.isFull()) {
+        lanes.pow(results);
+      }
+    }
+    lanes.pow(results);
+  }
+
+  /**
+   * Runs the test of {@link RSASystem#isPerhapsPrime(int, int)} on every candidate.
+   * @param witnesses Randomly chosen values with 0 < witnesses[i] < candidate i.
+   * @param exponents The candidates minus one.
+   * @return True at index i if candidate i is a possible prime otherwise false.
+   */
+  public static boolean[] isPerhapsPrime(int[] witnesses, int[] exponents) {
+    int count = witnesses.length;
+    if (exponents.length != count) {
+      throw new IllegalArgumentException("The arrays must have the same length");
+    }
+    boolean[] res = new boolean[count];
+    Lanes lanes = new Lanes();
+    for (int i = 0; i < count; i++) {
+      if (exponents[i] == Integer.MAX_VALUE
+          || !lanes.add(i, exponents[i] + 1, witnesses[i], exponents[i])) {
+        res[i] = RSASystem.isPerhapsPrime(witnesses[i], exponents[i]);
+      } else if (lanes.isFull()) {
+        lanes.screen(res);
+      }
+    }
+    lanes.screen(res);
+    return res;
+  }
+
+  /**
+   * The Montgomery state of one block of inputs.
+   */
+  private static class Lanes {
+    final long[] n = new long[LANES];
+    //-n^-1 mod 2^32
+    final long[] nPrime = new long[LANES];
+    //R mod n, the Montgomery form of 1
+    final long[] one = new long[LANES];
+    //the base in Montgomery form
+    final long[] a = new long[LANES];
+    final int[] x = new int[LANES];
+    final long[] y = new long[LANES];
+    final boolean[] prime = new boolean[LANES];
+    //the index of the input each lane holds
+    final int[] index = new int[LANES];
+    int size;
+    int maxBits;
+    private long lastModulus;
+    private long lastNPrime;
+    private long lastOne;
+    private long lastRSquared;
+
+    /**
+     * Puts an input into the next free lane if its modulus is odd and greater than one.
+     * @return False if the input has to be computed one value at a time.
+     */
+    boolean add(int i, int modulus, int base, int exponent) {
+      if (modulus <= 1 || (modulus & 1) == 0) {
+        return false;
+      }
+      int l = size++;
+      long m = modulus;
+      //inputs under one key usually follow each other, so the setup of the last modulus is kept
+      if (m != lastModulus) {
+        lastModulus = m;
+        lastNPrime = -Montgomery.inverseModWord(m) & LOW_32_BITS;
+        lastOne = (1L << 32) % m;
+        lastRSquared = lastOne * lastOne % m;
+      }
+      n[l] = m;
+      nPrime[l] = lastNPrime;
+      one[l] = lastOne;
+      a[l] = reduce(Math.floorMod(base, m) * lastRSquared, m, lastNPrime);
+      x[l] = exponent;
+      index[l] = i;
+      maxBits = Math.max(maxBits, RSASystem.getBitLength(exponent));
+      return true;
+    }
+
+    boolean isFull() {
+      return size == LANES;
+    }
+
+    /**
+     * Makes the free lanes of a partly filled block idle; the arithmetic done on them is
+     * discarded.
+     */
+    private void fill() {
+      for (int l = size; l < LANES; l++) {
+        n[l] = 0;
+        nPrime[l] = 0;
+        one[l] = 0;
+        a[l] = 0;
+        x[l] = 0;
+      }
+    }
+
+    /**
+     * Left-to-right square-and-multiply on every lane, writing the results of the block and
+     * emptying it. Lanes with shorter exponents square one until their leading bit is reached,
+     * which changes nothing.
+     */
+    void pow(int[] results) {
+      if (size == 0) {
+        return;
+      }
+      fill();
+      long[] n = this.n;
+      long[] nPrime = this.nPrime;
+      long[] a = this.a;
+      int[] x = this.x;
+      long[] y = this.y;
+      System.arraycopy(one, 0, y, 0, LANES);
+      for (int bit = maxBits - 1; bit >= 0; bit--) {
+        for (int l = 0; l < LANES; l++) {
+          long v = reduce(y[l] * y[l], n[l], nPrime[l]);
+          y[l] = select(x[l], bit, reduce(v * a[l], n[l], nPrime[l]), v);
+        }
+      }
+      for (int l = 0; l < size; l++) {
+        results[index[l]] = (int) reduce(y[l], n[l], nPrime[l]);
+      }
+      size = 0;
+      maxBits = 0;
+    }
+
+    /**
+     * The test of {@link RSASystem#isPerhapsPrime(int, int)} on every lane, writing the results of
+     * the block and emptying it: a^(n - 1) must be one and no square along the way may be a
+     * square root of one other than 1 and n - 1.
+     */
+    void screen(boolean[] res) {
+      if (size == 0) {
+        return;
+      }
+      fill();
+      long[] n = this.n;
+      long[] nPrime = this.nPrime;
+      long[] one = this.one;
+      long[] a = this.a;
+      int[] x = this.x;
+      long[] y = this.y;
+      boolean[] prime = this.prime;
+      System.arraycopy(one, 0, y, 0, LANES);
+      for (int l = 0; l < LANES; l++) {
+        prime[l] = true;
+      }
+      for (int bit = maxBits - 1; bit >= 0; bit--) {
+        for (int l = 0; l < LANES; l++) {
+          long z = y[l];
+          long v = reduce(z * z, n[l], nPrime[l]);
+          if (v == one[l] && z != one[l] && z != n[l] - one[l]) {
+            prime[l] = false;
+          }
+          y[l] = select(x[l], bit, reduce(v * a[l], n[l], nPrime[l]), v);
+        }
+      }
+      for (int l = 0; l < size; l++) {
+        res[index[l]] = prime[l] && y[l] == one[l];
+      }
+      size = 0;
+      maxBits = 0;
+    }
+
+    /**
+     * Picks one of two values without a branch; the bits of the exponents are random, so a
+     * branch would be mispredicted half of the time.
+     * @return ifSet if the bit of x is set, otherwise ifClear
+     */
+    static long select(int x, int bit, long ifSet, long ifClear) {
+      long mask = -(long) (x >>> bit & 1);
+      return ifClear ^ ((ifClear ^ ifSet) & mask);
+    }
+
+    /**
+     * @param t A value below n * R
+     * @return t * R^-1 mod n
+     */
+    static long reduce(long t, long n, long nPrime) {
+      long m = (t & LOW_32_BITS) * nPrime & LOW_32_BITS;
+      //t + m * n < 2^63 + 2^63, so the unsigned shift gives the right quotient
+      long u = ((t + m * n) >>> 32) - n;
+      //u < 2n, so adding n back when the difference is negative needs no branch
+      return u + (u >> 63 & n);
+    }
+  }
+}
@@ -0,0 +1,67 @@
+package main;
+
+/**
+ * A digital certificate r = name || n || e, signed by Trent: s = h(r)^d mod n with Trent's
+ * private exponent d and modulus n. Instances are immutable.
+ */
+public class Certificate {
+
+  private final String name;
+  private final int n;
+  private final int e;
+  private final int hash;
+  private final int signature;
+
+  /**
+   * Creates a certificate. No checks for invalid inputs.
+   * @param name The name of the owner of the key.
+   * @param n The modulus of the certified key.
+   * @param e The public exponent of the certified key.
+   * @param hash h(r)
+   * @param signature Trent's signature of h(r).
+   */
+  public Certificate(String name, int n, int e, int hash, int signature) {
+    this.name = name;
+    this.n = n;
+    this.e = e;
+    this.hash = hash;
+    this.signature = signature;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getN() {
+    return n;
+  }
+
+  public int getE() {
+    return e;
+  }
+
+  public int getHash() {
+    return hash;
+  }
+
+  public int getSignature() {
+    return signature;
+  }
+
+  /**
+   * Checks the signature with Trent's public key.
+   * @param trentE The public exponent of Trent.
+   * @param trentN The modulus of Trent.
+   * @return True if the signature matches the hash of the certificate.
+   */
+  public boolean verify(int trentE, int trentN) {
+    return RSASystem.hashCertificate(new XorFoldHash(), name, n, e) == hash
+        && RSASystem.fastExponentiation(signature, trentE, trentN) == hash;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("name = %s, n = %d, e = %d, h(r) = %d, s = %d", name, n, e, hash,
+        signature);
+  }
+}
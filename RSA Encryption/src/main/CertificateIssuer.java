@@ -0,0 +1,347 @@
+package main;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Issues the certificates of {@link RSASystem#printDigitalCertificate(RunContext)} for any number
+ * of requesters. Requests are put on a bounded queue; when it is full they are rejected instead
+ * of waiting, so the time a request spends queued stays bounded. One issuing thread takes the
+ * requests off the queue in micro-batches: it waits for the first request, then collects more
+ * until the batch is full or the maximum delay has passed, hashes every certificate with one
+ * reused hash and signs the whole batch with one call to the exponentiation engine.
+ * Requests can be made in process or, for load testing, over HTTP on the loopback interface.
+ */
+public class CertificateIssuer implements Closeable {
+
+  public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+  public static final long DEFAULT_MAX_DELAY_MICROS = 200;
+  public static final int DEFAULT_QUEUE_CAPACITY = 16 * 1024;
+  public static final String ENDPOINT_PATH = "/certificate";
+  private static final int ENDPOINT_THREADS = 16;
+
+  private final int trentN;
+  private final int trentD;
+  private final ExponentiationEngine engine;
+  private final int maxBatchSize;
+  private final long maxDelayNanos;
+  private final BlockingQueue<Request> queue;
+  private final Thread issuer;
+  private HttpServer server;
+  private ExecutorService serverThreads;
+  private volatile boolean closed;
+
+  /**
+   * Creates an issuer with the default batch size, delay and queue capacity and starts its
+   * issuing thread.
+   * @param trentPairs Trent's keys, in the following order {p, q, n, e, d}.
+   * @param engine The engine that computes the signatures.
+   */
+  public CertificateIssuer(int[] trentPairs, ExponentiationEngine engine) {
+    this(trentPairs, engine, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_DELAY_MICROS,
+        DEFAULT_QUEUE_CAPACITY);
+  }
+
+  /**
+   * Creates an issuer and starts its issuing thread.
+   * @param trentPairs Trent's keys, in the following order {p, q, n, e, d}.
+   * @param engine The engine that computes the signatures.
+   * @param maxBatchSize The largest number of certificates signed at once, maxBatchSize > 0
+   * @param maxDelayMicros How long the first request of a batch waits for more, at least zero.
+   * @param queueCapacity The number of requests that can wait, queueCapacity > 0
+   */
+  public CertificateIssuer(int[] trentPairs, ExponentiationEngine engine, int maxBatchSize,
+      long maxDelayMicros, int queueCapacity) {
+    if (maxBatchSize <= 0 || maxDelayMicros < 0 || queueCapacity <= 0) {
+      throw new IllegalArgumentException(
+          "The batch size and queue capacity must be positive and the delay not negative");
+    }
+    this.trentN = trentPairs[2];
+    this.trentD = trentPairs[4];
+    this.engine = engine;
+    this.maxBatchSize = maxBatchSize;
+    this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+    this.queue = new ArrayBlockingQueue<Request>(queueCapacity);
+    this.issuer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        issue();
+      }
+    }, "certificate-issuer");
+    issuer.start();
+  }
+
+  /**
+   * Requests a certificate.
+   * @param name The name of the owner of the key.
+   * @param n The modulus of the key.
+   * @param e The public exponent of the key.
+   * @return The certificate once it is signed. It fails with a RejectedExecutionException if
+   *         the queue is full or the issuer is closed.
+   */
+  public Future<Certificate> submit(String name, int n, int e) {
+    if (name == null) {
+      throw new IllegalArgumentException("The name must not be null");
+    }
+    Request request = new Request(name, n, e);
+    if (closed || !queue.offer(request)) {
+      request.result.completeExceptionally(new RejectedExecutionException(
+          closed ? "The issuer is closed" : "Too many certificate requests are waiting"));
+    }
+    return request.result;
+  }
+
+  /**
+   * Requests a certificate and waits for it.
+   * @param name The name of the owner of the key.
+   * @param n The modulus of the key.
+   * @param e The public exponent of the key.
+   * @return The signed certificate.
+   * @throws RejectedExecutionException If the queue is full or the issuer is closed.
+   */
+  public Certificate issue(String name, int n, int e) throws InterruptedException {
+    try {
+      return submit(name, n, e).get();
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) ex.getCause();
+      }
+      throw new RuntimeException(ex.getCause());
+    }
+  }
+
+  /**
+   * Starts the HTTP endpoint on the loopback interface. A GET request for
+   * {@link #ENDPOINT_PATH}?name=...&amp;n=...&amp;e=... is answered with the hash and signature
+   * in the format of the demonstration output, "h(r) = ..., s = ...".
+   * @param port The port to listen on, or zero for any free port.
+   * @return The port the endpoint listens on.
+   * @throws IOException If the port cannot be bound.
+   */
+  public synchronized int startEndpoint(int port) throws IOException {
+    if (server != null) {
+      throw new IllegalStateException("The endpoint is already running");
+    }
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    server.createContext(ENDPOINT_PATH, new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        handleRequest(exchange);
+      }
+    });
+    serverThreads = Executors.newFixedThreadPool(ENDPOINT_THREADS);
+    server.setExecutor(serverThreads);
+    server.start();
+    return server.getAddress().getPort();
+  }
+
+  /**
+   * Stops the endpoint, signs every request that is already queued and stops the issuing
+   * thread. Requests submitted afterwards are rejected.
+   */
+  @Override
+  public void close() {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (server != null) {
+        server.stop(0);
+        serverThreads.shutdown();
+      }
+    }
+    boolean interrupted = false;
+    while (true) {
+      try {
+        queue.put(Request.END);
+        issuer.join();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    rejectQueued();
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * The loop of the issuing thread.
+   */
+  private void issue() {
+    List<Request> batch = new ArrayList<Request>(maxBatchSize);
+    int[] hashes = new int[maxBatchSize];
+    int[] signatures = new int[maxBatchSize];
+    XorFoldHash hash = new XorFoldHash();
+    boolean done = false;
+    while (!done) {
+      try {
+        done = collect(batch);
+      } catch (InterruptedException e) {
+        done = true;
+      }
+      int count = batch.size();
+      try {
+        for (int i = 0; i < count; i++) {
+          Request request = batch.get(i);
+          hashes[i] = RSASystem.hashCertificate(hash, request.name, request.n, request.e);
+        }
+        engine.pow(hashes, count, trentD, trentN, signatures);
+        for (int i = 0; i < count; i++) {
+          Request request = batch.get(i);
+          request.result.complete(
+              new Certificate(request.name, request.n, request.e, hashes[i], signatures[i]));
+        }
+      } catch (RuntimeException e) {
+        for (Request request : batch) {
+          request.result.completeExceptionally(e);
+        }
+      }
+      batch.clear();
+    }
+    rejectQueued();
+  }
+
+  /**
+   * Rejects the requests that were queued after the end marker while the issuer was closing.
+   */
+  private void rejectQueued() {
+    Request request;
+    while ((request = queue.poll()) != null) {
+      if (request != Request.END) {
+        request.result.completeExceptionally(
+            new RejectedExecutionException("The issuer is closed"));
+      }
+    }
+  }
+
+  /**
+   * Waits for the first request of a batch and collects more until the batch is full or the
+   * delay has passed.
+   * @return True if the end marker was reached.
+   */
+  private boolean collect(List<Request> batch) throws InterruptedException {
+    Request request = queue.take();
+    long deadline = System.nanoTime() + maxDelayNanos;
+    while (request != Request.END) {
+      batch.add(request);
+      if (batch.size() == maxBatchSize) {
+        return false;
+      }
+      request = queue.poll();
+      if (request == null) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          return false;
+        }
+        request = queue.poll(remaining, TimeUnit.NANOSECONDS);
+        if (request == null) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private void handleRequest(HttpExchange exchange) throws IOException {
+    int status = 200;
+    String body;
+    try {
+      Map<String, String> params = parseQuery(exchange.getRequestURI());
+      if (params.get("name") == null) {
+        throw new NumberFormatException("The name is missing");
+      }
+      Certificate certificate = submit(params.get("name"), Integer.parseInt(params.get("n")),
+          Integer.parseInt(params.get("e"))).get();
+      body = String.format("h(r) = %d, s = %d\n", certificate.getHash(),
+          certificate.getSignature());
+    } catch (IllegalArgumentException e) {
+      //also a malformed escape in the query
+      status = 400;
+      body = "The parameters name, n and e are required and n and e must be int values\n";
+    } catch (ExecutionException e) {
+      status = 503;
+      String message = e.getCause().getMessage();
+      body = (message != null ? message : e.getCause().toString()) + "\n";
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      status = 503;
+      body = "Interrupted\n";
+    }
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Splits the query of a URI into its parameters and decodes their names and values, so an
+   * encoded & or = does not split them. Parameters without a value are mapped to an empty string.
+   * @throws IllegalArgumentException If the query has a malformed escape.
+   */
+  private static Map<String, String> parseQuery(URI uri) throws IOException {
+    Map<String, String> params = new HashMap<String, String>();
+    String query = uri.getRawQuery();
+    if (query == null) {
+      return params;
+    }
+    for (String param : query.split("&")) {
+      int split = param.indexOf('=');
+      if (split < 0) {
+        params.put(URLDecoder.decode(param, "UTF-8"), "");
+      } else {
+        params.put(URLDecoder.decode(param.substring(0, split), "UTF-8"),
+            URLDecoder.decode(param.substring(split + 1), "UTF-8"));
+      }
+    }
+    return params;
+  }
+
+  /**
+   * A certificate request, or the end marker.
+   */
+  private static class Request {
+    static final Request END = new Request(null, 0, 0);
+
+    final String name;
+    final int n;
+    final int e;
+    final CompletableFuture<Certificate> result = new CompletableFuture<Certificate>();
+
+    Request(String name, int n, int e) {
+      this.name = name;
+      this.n = n;
+      this.e = e;
+    }
+  }
+}
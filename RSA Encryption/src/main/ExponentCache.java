@@ -0,0 +1,146 @@
+package main;
+
+import java.math.BigInteger;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches the per-key setup of sliding-window exponentiation: the Montgomery context of the
+ * modulus and the recoded exponent. Repeated exponentiations under the same (exponent, modulus)
+ * pair, such as signing with one private key, only pay for the odd-power table of the base,
+ * which depends on the base and therefore is built per call. The least recently used key is
+ * evicted once the cache is full. Instances are thread-safe.
+ */
+public class ExponentCache {
+
+  public static final int DEFAULT_CAPACITY = 64;
+
+  private final Map<Key, CachedKey> entries;
+
+  public ExponentCache() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Creates a cache.
+   * @param capacity The maximum number of keys that are kept, capacity > 0
+   */
+  public ExponentCache(final int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("The capacity must be a positive integer value");
+    }
+    this.entries = new LinkedHashMap<Key, CachedKey>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, CachedKey> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  /**
+   * Computes a^x mod n. No checks for invalid inputs.
+   * @param a The base, a >= 0
+   * @param x The exponent, x >= 0
+   * @param n The modulus, which needs to be odd and greater than one
+   * @return The value of the modular exponentiation computation
+   */
+  public long pow(long a, long x, long n) {
+    CachedKey entry = getEntry(BigInteger.valueOf(x), BigInteger.valueOf(n));
+    return entry.exponent.pow(entry.wordContext, a);
+  }
+
+  /**
+   * Computes a^x mod n. No checks for invalid inputs.
+   * @param a The base, a >= 0
+   * @param x The exponent, x >= 0
+   * @param n The modulus, which needs to be odd and greater than one
+   * @return The value of the modular exponentiation computation
+   */
+  public BigInteger pow(BigInteger a, BigInteger x, BigInteger n) {
+    CachedKey entry = getEntry(x, n);
+    if (entry.wordContext != null) {
+      return BigInteger.valueOf(entry.exponent.pow(entry.wordContext, a.mod(n).longValue()));
+    }
+    return entry.exponent.pow(entry.limbContext, a);
+  }
+
+  /**
+   * @return The number of keys currently cached.
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Checks for a key without counting it as used.
+   * @param x The exponent.
+   * @param n The modulus.
+   * @return Whether the setup for the key is cached.
+   */
+  protected synchronized boolean contains(BigInteger x, BigInteger n) {
+    return entries.containsKey(new Key(x, n));
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  private CachedKey getEntry(BigInteger x, BigInteger n) {
+    Key key = new Key(x, n);
+    synchronized (this) {
+      CachedKey entry = entries.get(key);
+      if (entry != null) {
+        return entry;
+      }
+    }
+    //built outside the lock; a concurrent miss on the same key only duplicates work
+    CachedKey entry = new CachedKey(x, n);
+    synchronized (this) {
+      entries.put(key, entry);
+    }
+    return entry;
+  }
+
+  private static final class Key {
+    private final BigInteger x;
+    private final BigInteger n;
+
+    Key(BigInteger x, BigInteger n) {
+      this.x = x;
+      this.n = n;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return x.equals(other.x) && n.equals(other.n);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * x.hashCode() + n.hashCode();
+    }
+  }
+
+  private static final class CachedKey {
+    private final SlidingWindowExponent exponent;
+    private final Montgomery wordContext;
+    private final MultiLimbMontgomery limbContext;
+
+    CachedKey(BigInteger x, BigInteger n) {
+      this.exponent = SlidingWindowExponent.recode(x);
+      if (n.bitLength() < Long.SIZE) {
+        this.wordContext = new Montgomery(n.longValue());
+        this.limbContext = null;
+      } else {
+        this.wordContext = null;
+        this.limbContext = new MultiLimbMontgomery(n);
+      }
+    }
+  }
+}
@@ -0,0 +1,49 @@
+package main;
+
+/**
+ * Computes the private-key operation for many messages under one key, so that callers such as
+ * {@link CertificateIssuer} can choose how the exponentiations are done.
+ */
+public interface ExponentiationEngine {
+
+  /**
+   * One message at a time through {@link RSASystem#sign(RSAPrivateCrtKey, int, int, int)}, which
+   * reuses the cached Montgomery context and recoded exponent of the key.
+   */
+  ExponentiationEngine SCALAR = new ExponentiationEngine() {
+    @Override
+    public void pow(int[] bases, int count, int x, int n, int[] results) {
+      for (int i = 0; i < count; i++) {
+        results[i] = RSASystem.sign(null, bases[i], x, n);
+      }
+    }
+  };
+
+  /**
+   * Every batch at once through {@link BatchExponentiation}.
+   */
+  ExponentiationEngine LANES = new ExponentiationEngine() {
+    @Override
+    public void pow(int[] bases, int count, int x, int n, int[] results) {
+      int[] messages = new int[count];
+      int[] exponents = new int[count];
+      int[] moduli = new int[count];
+      System.arraycopy(bases, 0, messages, 0, count);
+      for (int i = 0; i < count; i++) {
+        exponents[i] = x;
+        moduli[i] = n;
+      }
+      BatchExponentiation.pow(messages, exponents, moduli, results);
+    }
+  };
+
+  /**
+   * Computes results[i] = bases[i]^x mod n for every i < count.
+   * @param bases The bases, 0 <= bases[i] < n
+   * @param count The number of bases to use.
+   * @param x The exponent, x >= 0
+   * @param n The modulus, which needs to be odd and greater than one
+   * @param results The array the results are written to, at least count long.
+   */
+  void pow(int[] bases, int count, int x, int n, int[] results);
+}
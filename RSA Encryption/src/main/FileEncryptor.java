@@ -0,0 +1,491 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.spec.KeySpec;
+import java.security.spec.RSAPrivateCrtKeySpec;
+import java.security.spec.RSAPrivateKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts and decrypts files of any size with an RSA key pair. In block mode the file is split
+ * into blocks of (bits of n - 1) / 8 bytes, so that every block is smaller than n, and each block
+ * is encrypted as c = m^e mod n into a block of the size of n; like the rest of RSASystem the
+ * blocks are not padded. In hybrid mode a random AES session key and counter are encrypted with
+ * RSA-OAEP, which needs a modulus of at least {@link #MIN_HYBRID_MODULUS_BITS} bits, and the file
+ * itself is encrypted with AES in counter mode.
+ * An encrypted file starts with a header (magic, version, mode, length of the wrapped session key
+ * as ints and the length of the plain file as a long), followed by the wrapped session key, if
+ * any, and the encrypted chunks.
+ * Files are processed in chunks: the calling thread reads a chunk through a FileChannel, worker
+ * threads transform up to two chunks per thread at a time, and the calling thread writes the
+ * results in the order of the chunks. The chunk buffers are reused, so the memory used does not
+ * depend on the size of the file.
+ */
+public class FileEncryptor {
+
+  public enum Mode { BLOCK, HYBRID }
+
+  public static final int MAGIC = 0x52534145; //"RSAE"
+  public static final int VERSION = 1;
+  public static final int HEADER_SIZE = 24;
+  public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+  private static final int AES_KEY_BYTES = 16;
+  private static final int AES_BLOCK_BYTES = 16;
+  private static final int CHUNKS_PER_THREAD = 2;
+  //the session key is wrapped with OAEP, which needs room for two SHA-256 hashes
+  public static final int MIN_HYBRID_MODULUS_BITS = RSAKeyGenerator.MIN_MODULUS_BITS;
+  private static final String OAEP = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
+
+  private final BigInteger n;
+  private final BigInteger e;
+  private final RSAPrivateCrtKey crtKey;
+  //moduli that fit into a long are handled without BigInteger
+  private final Montgomery wordContext;
+  private final int plainBlockSize;
+  private final int cipherBlockSize;
+  private final int numThreads;
+  private final int chunkSize;
+  private final Random randGen;
+
+  /**
+   * Creates an encryptor with chunks of {@link #DEFAULT_CHUNK_SIZE} bytes.
+   * @param key The key pair; its modulus needs at least 9 bits.
+   * @param numThreads The number of worker threads, numThreads > 0
+   */
+  public FileEncryptor(RSAKeyPair key, int numThreads) {
+    this(key, numThreads, DEFAULT_CHUNK_SIZE, new SecureRandom());
+  }
+
+  /**
+   * Creates an encryptor.
+   * @param key The key pair; its modulus needs at least 9 bits.
+   * @param numThreads The number of worker threads, numThreads > 0
+   * @param chunkSize The approximate number of plain bytes per chunk, chunkSize > 0
+   * @param randGen The generator of the session keys.
+   */
+  public FileEncryptor(RSAKeyPair key, int numThreads, int chunkSize, Random randGen) {
+    if (numThreads <= 0 || chunkSize <= 0) {
+      throw new IllegalArgumentException(
+          "The number of threads and the chunk size must be positive integer values");
+    }
+    if (key.getN().bitLength() <= Byte.SIZE) {
+      throw new IllegalArgumentException("The modulus is too small to encrypt whole bytes");
+    }
+    this.n = key.getN();
+    this.e = key.getE();
+    this.crtKey = key.getPrivateCrtKey();
+    this.wordContext = n.bitLength() < Long.SIZE && e.bitLength() < Long.SIZE
+        ? new Montgomery(n.longValue()) : null;
+    this.plainBlockSize = (n.bitLength() - 1) / Byte.SIZE;
+    this.cipherBlockSize = (n.bitLength() + Byte.SIZE - 1) / Byte.SIZE;
+    this.numThreads = numThreads;
+    this.chunkSize = chunkSize;
+    this.randGen = randGen;
+  }
+
+  /**
+   * Encrypts a file.
+   * @param source The plain file.
+   * @param target The encrypted file, replaced if it exists.
+   * @param mode How the file is encrypted.
+   * @throws IOException If a file cannot be read or written.
+   * @throws IllegalArgumentException If the mode is HYBRID and the modulus is too small.
+   */
+  public void encrypt(File source, File target, Mode mode) throws IOException {
+    if (mode == Mode.HYBRID && n.bitLength() < MIN_HYBRID_MODULUS_BITS) {
+      throw new IllegalArgumentException(String.format(
+          "Hybrid mode needs a modulus of at least %d bits to pad the session key",
+          MIN_HYBRID_MODULUS_BITS));
+    }
+    FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+    try {
+      FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+      try {
+        long length = in.size();
+        byte[] wrappedKey = new byte[0];
+        byte[] sessionKey = null;
+        if (mode == Mode.HYBRID) {
+          sessionKey = new byte[AES_KEY_BYTES + AES_BLOCK_BYTES];
+          randGen.nextBytes(sessionKey);
+          wrappedKey = wrap(sessionKey);
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + wrappedKey.length);
+        header.putInt(MAGIC).putInt(VERSION).putInt(mode.ordinal()).putInt(wrappedKey.length)
+            .putLong(length).put(wrappedKey);
+        header.flip();
+        writeFully(out, header);
+        if (mode == Mode.HYBRID) {
+          int chunk = counterChunkSize();
+          process(in, 0, length, chunk, out, length, chunk, counterMode(sessionKey, chunk));
+        } else {
+          int blocks = blocksPerChunk();
+          process(in, 0, length, blocks * plainBlockSize, out, cipherBytes(length),
+              blocks * cipherBlockSize, new ChunkTransform() {
+                @Override
+                public void apply(long chunk, ByteBuffer from, ByteBuffer to) {
+                  encryptBlocks(from, to);
+                }
+              });
+        }
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Decrypts a file encrypted with the same key pair.
+   * @param source The encrypted file.
+   * @param target The plain file, replaced if it exists.
+   * @throws IOException If a file cannot be read or written or the source is not a valid
+   *         encrypted file.
+   */
+  public void decrypt(File source, File target) throws IOException {
+    FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+    try {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      readFully(in, header, 0);
+      header.flip();
+      if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+        throw new IOException("Not an encrypted file");
+      }
+      int version = header.getInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported encrypted file version " + version);
+      }
+      int modeOrdinal = header.getInt();
+      int wrappedLength = header.getInt();
+      long length = header.getLong();
+      if (modeOrdinal < 0 || modeOrdinal >= Mode.values().length || length < 0) {
+        throw new IOException("The header of the encrypted file is corrupt");
+      }
+      Mode mode = Mode.values()[modeOrdinal];
+      if (wrappedLength != (mode == Mode.HYBRID ? cipherBlockSize : 0)) {
+        throw new IOException("The encrypted file was written with a different key");
+      }
+      long bodyStart = HEADER_SIZE + wrappedLength;
+      long bodyLength = mode == Mode.HYBRID ? length : cipherBytes(length);
+      if (in.size() != bodyStart + bodyLength) {
+        throw new IOException("The encrypted file is truncated");
+      }
+      FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+      try {
+        if (mode == Mode.HYBRID) {
+          ByteBuffer wrapped = ByteBuffer.allocate(wrappedLength);
+          readFully(in, wrapped, HEADER_SIZE);
+          byte[] sessionKey = unwrap(wrapped.array());
+          int chunk = counterChunkSize();
+          process(in, bodyStart, length, chunk, out, length, chunk,
+              counterMode(sessionKey, chunk));
+        } else {
+          int blocks = blocksPerChunk();
+          process(in, bodyStart, bodyLength, blocks * cipherBlockSize, out, length,
+              blocks * plainBlockSize, new ChunkTransform() {
+                @Override
+                public void apply(long chunk, ByteBuffer from, ByteBuffer to) throws IOException {
+                  decryptBlocks(from, to);
+                }
+              });
+        }
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * @param plainLength The number of plain bytes.
+   * @return The number of bytes they take in block mode.
+   */
+  public long cipherBytes(long plainLength) {
+    return (plainLength + plainBlockSize - 1) / plainBlockSize * cipherBlockSize;
+  }
+
+  /**
+   * Encrypts the session key and counter with RSA-OAEP.
+   */
+  private byte[] wrap(byte[] sessionKey) throws IOException {
+    try {
+      PublicKey key = KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(n, e));
+      Cipher cipher = Cipher.getInstance(OAEP);
+      cipher.init(Cipher.ENCRYPT_MODE, key, new SecureRandom());
+      return cipher.doFinal(sessionKey);
+    } catch (GeneralSecurityException ex) {
+      throw new IOException("The session key cannot be wrapped", ex);
+    }
+  }
+
+  /**
+   * Decrypts the session key and counter with RSA-OAEP. The JCA CRT key spec only holds two
+   * primes, so a key with more primes is passed as n and d.
+   * @throws IOException If the padding is wrong, for example because the file was encrypted for
+   *         a different key.
+   */
+  private byte[] unwrap(byte[] wrappedKey) throws IOException {
+    try {
+      KeySpec spec = crtKey.getNumPrimes() == 2 ? new RSAPrivateCrtKeySpec(n, e,
+          crtKey.getD(), crtKey.getP(), crtKey.getQ(), crtKey.getDP(), crtKey.getDQ(),
+          crtKey.getQInv()) : new RSAPrivateKeySpec(n, crtKey.getD());
+      PrivateKey key = KeyFactory.getInstance("RSA").generatePrivate(spec);
+      Cipher cipher = Cipher.getInstance(OAEP);
+      cipher.init(Cipher.DECRYPT_MODE, key);
+      byte[] sessionKey = cipher.doFinal(wrappedKey);
+      if (sessionKey.length != AES_KEY_BYTES + AES_BLOCK_BYTES) {
+        throw new IOException("The session key of the encrypted file is corrupt");
+      }
+      return sessionKey;
+    } catch (GeneralSecurityException ex) {
+      throw new IOException("The session key of the encrypted file cannot be unwrapped", ex);
+    }
+  }
+
+  private int blocksPerChunk() {
+    return Math.max(1, chunkSize / plainBlockSize);
+  }
+
+  private int counterChunkSize() {
+    return Math.max(1, chunkSize / AES_BLOCK_BYTES) * AES_BLOCK_BYTES;
+  }
+
+  /**
+   * Encrypts the plain blocks in from into to. The last block may be short; it is padded with
+   * zeros, which are cut off again when it is decrypted.
+   */
+  private void encryptBlocks(ByteBuffer from, ByteBuffer to) {
+    byte[] block = new byte[plainBlockSize];
+    while (from.hasRemaining()) {
+      int length = Math.min(plainBlockSize, from.remaining());
+      from.get(block, 0, length);
+      Arrays.fill(block, length, plainBlockSize, (byte) 0);
+      if (wordContext != null) {
+        long c = wordContext.pow(toWord(block, plainBlockSize), e.longValue());
+        putWord(to, c, cipherBlockSize, cipherBlockSize);
+      } else {
+        putBig(to, new BigInteger(1, block).modPow(e, n), cipherBlockSize, cipherBlockSize);
+      }
+    }
+  }
+
+  /**
+   * Decrypts the cipher blocks in from into to; the last block is cut off at the limit of to.
+   */
+  private void decryptBlocks(ByteBuffer from, ByteBuffer to) throws IOException {
+    byte[] block = new byte[cipherBlockSize];
+    while (from.hasRemaining()) {
+      from.get(block);
+      int length = Math.min(plainBlockSize, to.remaining());
+      if (wordContext != null) {
+        long c = toWord(block, cipherBlockSize);
+        if (c < 0 || c >= wordContext.getModulus()) {
+          throw new IOException("The encrypted file is corrupt");
+        }
+        putWord(to, crtKey.decrypt(c), plainBlockSize, length);
+      } else {
+        BigInteger c = new BigInteger(1, block);
+        if (c.compareTo(n) >= 0) {
+          throw new IOException("The encrypted file is corrupt");
+        }
+        putBig(to, crtKey.decrypt(c), plainBlockSize, length);
+      }
+    }
+  }
+
+  private static long toWord(byte[] block, int length) {
+    long value = 0;
+    for (int i = 0; i < length; i++) {
+      value = value << Byte.SIZE | block[i] & 0xFFL;
+    }
+    return value;
+  }
+
+  /**
+   * Puts the leading bytes of a value written big endian in a block of size bytes.
+   * @param length The number of bytes put, at most size.
+   */
+  private static void putWord(ByteBuffer to, long value, int size, int length) {
+    for (int i = 0; i < length; i++) {
+      to.put((byte) (value >>> (size - 1 - i) * Byte.SIZE));
+    }
+  }
+
+  /**
+   * Puts the leading bytes of a value written big endian in a block of size bytes.
+   * @param length The number of bytes put, at most size.
+   */
+  private static void putBig(ByteBuffer to, BigInteger value, int size, int length) {
+    byte[] bytes = value.toByteArray();
+    for (int i = 0; i < length; i++) {
+      //byte i of the block is byte i + bytes.length - size of the array
+      int pos = i + bytes.length - size;
+      to.put(pos >= 0 ? bytes[pos] : 0);
+    }
+  }
+
+  /**
+   * @return The transform of AES in counter mode that starts chunk i at the counter
+   *         iv + i * chunkSize / 16.
+   */
+  private static ChunkTransform counterMode(byte[] sessionKey, final int chunkSize) {
+    final SecretKeySpec key = new SecretKeySpec(sessionKey, 0, AES_KEY_BYTES, "AES");
+    final BigInteger iv = new BigInteger(1,
+        Arrays.copyOfRange(sessionKey, AES_KEY_BYTES, AES_KEY_BYTES + AES_BLOCK_BYTES));
+    return new ChunkTransform() {
+      @Override
+      public void apply(long chunk, ByteBuffer from, ByteBuffer to) throws IOException {
+        BigInteger counter = iv.add(BigInteger.valueOf(chunk)
+            .multiply(BigInteger.valueOf(chunkSize / AES_BLOCK_BYTES)));
+        byte[] counterBytes = new byte[AES_BLOCK_BYTES];
+        byte[] value = counter.toByteArray();
+        //the counter wraps around at 2^128
+        for (int i = 0; i < AES_BLOCK_BYTES && i < value.length; i++) {
+          counterBytes[AES_BLOCK_BYTES - 1 - i] = value[value.length - 1 - i];
+        }
+        try {
+          Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+          cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(counterBytes));
+          cipher.doFinal(from, to);
+        } catch (GeneralSecurityException e) {
+          throw new IOException("AES is not available", e);
+        }
+      }
+    };
+  }
+
+  /**
+   * Transforms the input from inStart on in chunks. Chunk i is read from
+   * inStart + i * inChunk, has min(inChunk, inLength - i * inChunk) bytes and is transformed
+   * into min(outChunk, outLength - i * outChunk) bytes, which are written at the position of out.
+   */
+  private void process(FileChannel in, long inStart, long inLength, int inChunk, FileChannel out,
+      long outLength, int outChunk, final ChunkTransform transform) throws IOException {
+    long numChunks = (inLength + inChunk - 1) / inChunk;
+    int maxSlots = numThreads * CHUNKS_PER_THREAD;
+    ExecutorService workers = Executors.newFixedThreadPool(numThreads);
+    ArrayDeque<Future<Slot>> pending = new ArrayDeque<Future<Slot>>();
+    try {
+      for (long i = 0; i < numChunks; i++) {
+        //once every slot is in flight, the oldest chunk is written and its slot reused
+        final Slot current = pending.size() < maxSlots ? new Slot(inChunk, outChunk)
+            : write(pending.poll(), out);
+        final long chunk = i;
+        current.in.clear();
+        current.in.limit((int) Math.min(inChunk, inLength - i * inChunk));
+        readFully(in, current.in, inStart + i * inChunk);
+        if (current.in.hasRemaining()) {
+          throw new IOException("The file is shorter than expected");
+        }
+        current.in.flip();
+        current.out.clear();
+        current.out.limit((int) Math.min(outChunk, outLength - i * outChunk));
+        pending.add(workers.submit(new Callable<Slot>() {
+          @Override
+          public Slot call() throws IOException {
+            transform.apply(chunk, current.in, current.out);
+            current.out.flip();
+            return current;
+          }
+        }));
+      }
+      while (!pending.isEmpty()) {
+        write(pending.poll(), out);
+      }
+    } finally {
+      workers.shutdownNow();
+    }
+  }
+
+  /**
+   * Waits for a chunk to be transformed and writes it.
+   * @return The slot of the chunk, free to be reused.
+   */
+  private static Slot write(Future<Slot> result, FileChannel out) throws IOException {
+    Slot slot;
+    try {
+      slot = result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a chunk");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+    writeFully(out, slot.out);
+    return slot;
+  }
+
+  private static void readFully(FileChannel in, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = in.read(buffer, position);
+      if (read < 0) {
+        return;
+      }
+      position += read;
+    }
+  }
+
+  private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      out.write(buffer);
+    }
+  }
+
+  /**
+   * Encrypts or decrypts one chunk.
+   */
+  private interface ChunkTransform {
+    /**
+     * @param chunk The index of the chunk.
+     * @param from The input bytes of the chunk.
+     * @param to The buffer for the output bytes, with room for exactly the output of the chunk.
+     */
+    void apply(long chunk, ByteBuffer from, ByteBuffer to) throws IOException;
+  }
+
+  /**
+   * The reused buffers of one chunk in flight.
+   */
+  private static class Slot {
+    final ByteBuffer in;
+    final ByteBuffer out;
+
+    Slot(int inSize, int outSize) {
+      this.in = ByteBuffer.allocate(inSize);
+      this.out = ByteBuffer.allocate(outSize);
+    }
+  }
+}
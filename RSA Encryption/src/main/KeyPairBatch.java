@@ -0,0 +1,422 @@
+package main;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Many two-prime key pairs stored as a structure of arrays: every component of the keys has one
+ * array that holds it for all keys, each value in a fixed number of 64-bit limbs, least
+ * significant limb first. Holding a batch costs a handful of objects no matter how many keys it
+ * has. Large batches are kept in direct buffers outside the heap.
+ * Batches are filled with a fork/join pool. The keys are split into chunks of
+ * {@link #CHUNK_SIZE}; chunk i draws from random stream i and reuses one generator for all of its
+ * keys, so seeded batches do not depend on the number of threads.
+ */
+public class KeyPairBatch {
+
+  public static final int CHUNK_SIZE = 64;
+  //batches whose components take more bytes than this are stored outside the heap
+  public static final long OFF_HEAP_THRESHOLD = 32L * 1024 * 1024;
+  private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+    @Override
+    protected Scratch initialValue() {
+      return new Scratch();
+    }
+  };
+
+  private final int count;
+  private final int modulusBits;
+  private final int modulusLimbs;
+  private final int primeLimbs;
+  private final boolean offHeap;
+  private final LongBuffer n;
+  private final LongBuffer e;
+  private final LongBuffer d;
+  private final LongBuffer p;
+  private final LongBuffer q;
+  private final LongBuffer dp;
+  private final LongBuffer dq;
+  private final LongBuffer qInv;
+
+  /**
+   * Creates an empty batch, stored outside the heap if it is larger than
+   * {@link #OFF_HEAP_THRESHOLD}.
+   * @param count The number of keys.
+   * @param modulusBits The size of the moduli in bits.
+   */
+  public KeyPairBatch(int count, int modulusBits) {
+    this(count, modulusBits, bytesNeeded(count, modulusBits) > OFF_HEAP_THRESHOLD);
+  }
+
+  /**
+   * Creates an empty batch.
+   * @param count The number of keys.
+   * @param modulusBits The size of the moduli in bits.
+   * @param offHeap True to store the keys in direct buffers.
+   */
+  public KeyPairBatch(int count, int modulusBits, boolean offHeap) {
+    if (count < 0 || modulusBits <= 0) {
+      throw new IllegalArgumentException("The count and size of the keys must not be negative");
+    }
+    this.count = count;
+    this.modulusBits = modulusBits;
+    this.modulusLimbs = limbs(modulusBits);
+    this.primeLimbs = primeLimbs(modulusBits);
+    this.offHeap = offHeap;
+    this.n = allocate(modulusLimbs);
+    this.e = allocate(1);
+    this.d = allocate(modulusLimbs);
+    this.p = allocate(primeLimbs);
+    this.q = allocate(primeLimbs);
+    this.dp = allocate(primeLimbs);
+    this.dq = allocate(primeLimbs);
+    this.qInv = allocate(primeLimbs);
+  }
+
+  /**
+   * Generates a batch of key pairs. SMALL_MODULUS_BITS selects the int path; larger
+   * sizes take their primes from {@link RSAKeyGenerator}, have the public exponent
+   * {@link RSAKeyGenerator#F4} and are written into the buffers without a key object per key.
+   * @param streams The random streams; chunk i of the keys uses stream i.
+   * @param pool The pool that generates the keys.
+   * @param count The number of keys.
+   * @param modulusBits The size of the moduli in bits.
+   * @return The generated keys.
+   */
+  public static KeyPairBatch generate(RandomStreams streams, ForkJoinPool pool, int count,
+      int modulusBits) {
+    RSASystem.checkModulusBits(modulusBits);
+    KeyPairBatch batch = new KeyPairBatch(count, modulusBits);
+    pool.invoke(new GenerateTask(batch, streams, 0, count));
+    return batch;
+  }
+
+  public int size() {
+    return count;
+  }
+
+  public int getModulusBits() {
+    return modulusBits;
+  }
+
+  /**
+   * @return True if the keys are stored in direct buffers.
+   */
+  public boolean isOffHeap() {
+    return offHeap;
+  }
+
+  public BigInteger getN(int i) {
+    return get(n, i, modulusLimbs);
+  }
+
+  public long getE(int i) {
+    return e.get(checkIndex(i));
+  }
+
+  public BigInteger getD(int i) {
+    return get(d, i, modulusLimbs);
+  }
+
+  public BigInteger getP(int i) {
+    return get(p, i, primeLimbs);
+  }
+
+  public BigInteger getQ(int i) {
+    return get(q, i, primeLimbs);
+  }
+
+  public BigInteger getDP(int i) {
+    return get(dp, i, primeLimbs);
+  }
+
+  public BigInteger getDQ(int i) {
+    return get(dq, i, primeLimbs);
+  }
+
+  public BigInteger getQInv(int i) {
+    return get(qInv, i, primeLimbs);
+  }
+
+  /**
+   * Materializes one key of the batch.
+   * @param i The index of the key.
+   * @return The key pair, with the stored CRT form.
+   */
+  public RSAKeyPair getKeyPair(int i) {
+    return new RSAKeyPair(getN(i), BigInteger.valueOf(getE(i)), new RSAPrivateCrtKey(getP(i),
+        getQ(i), getD(i), getDP(i), getDQ(i), getQInv(i)));
+  }
+
+  /**
+   * Stores a key from the int path.
+   * @param i The index of the key.
+   * @param pairs Array containing values in the following order {p, q, n, e, d}.
+   */
+  void set(int i, int[] pairs) {
+    int prime = checkIndex(i) * primeLimbs;
+    int modulus = i * modulusLimbs;
+    long pValue = pairs[0];
+    long qValue = pairs[1];
+    long dValue = pairs[4];
+    p.put(prime, pValue);
+    q.put(prime, qValue);
+    dp.put(prime, dValue % (pValue - 1));
+    dq.put(prime, dValue % (qValue - 1));
+    qInv.put(prime, ModularInverse.inverse(qValue, pValue));
+    n.put(modulus, pairs[2]);
+    d.put(modulus, dValue);
+    e.put(i, pairs[3]);
+  }
+
+  /**
+   * Stores a key pair.
+   * @param i The index of the key.
+   * @param pair A two-prime key pair of the size of the batch.
+   * @throws IllegalArgumentException If the key has more than two primes or its public exponent
+   *         does not fit into a long.
+   */
+  void set(int i, RSAKeyPair pair) {
+    if (pair.getE().bitLength() >= Long.SIZE) {
+      throw new IllegalArgumentException("The public exponent does not fit into a long");
+    }
+    RSAPrivateCrtKey crtKey = pair.getPrivateCrtKey();
+    //a record only holds p and q, whose product would not be n
+    if (crtKey.getNumPrimes() != 2) {
+      throw new IllegalArgumentException("Only two-prime keys can be stored");
+    }
+    put(p, i, primeLimbs, pair.getP());
+    put(q, i, primeLimbs, pair.getQ());
+    put(dp, i, primeLimbs, crtKey.getDP());
+    put(dq, i, primeLimbs, crtKey.getDQ());
+    put(qInv, i, primeLimbs, crtKey.getQInv());
+    put(n, i, modulusLimbs, pair.getN());
+    put(d, i, modulusLimbs, pair.getD());
+    e.put(i, pair.getE().longValue());
+  }
+
+  /**
+   * Fills the keys from index start (inclusive) to end (exclusive), at most one chunk, with keys
+   * of the generator's fixed public exponent e. The private exponents are found without a CRT
+   * key or an extended GCD per key: for every modulus m among p - 1, q - 1 and phi(n),
+   * k = -m^-1 mod e gives e^-1 mod m = (k * m + 1) / e. All 3 * count inverses share the modulus e,
+   * so they are computed together with {@link ModularInverse#inverseAll(long[], long)}.
+   */
+  private void fillChunk(RSAKeyGenerator generator, int start, int end, Scratch scratch) {
+    int count = end - start;
+    BigInteger bigE = generator.getPublicExponent();
+    long exponent = bigE.longValue();
+    int pBits = (modulusBits + 1) / 2;
+    int qBits = modulusBits - pBits;
+    for (int k = 0; k < count; k++) {
+      scratch.starts[k] = Metrics.startTimer();
+      //both primes have their top two bits set, so n has exactly modulusBits bits
+      BigInteger pValue = generator.getTestedPrime(pBits);
+      BigInteger qValue;
+      do {
+        qValue = generator.getTestedPrime(qBits);
+      } while (qValue.equals(pValue));
+      scratch.p[k] = pValue;
+      scratch.q[k] = qValue;
+      //the generator rejects primes that are 1 mod e, so none of the residues is zero
+      long pResidue = pValue.mod(bigE).longValue() - 1;
+      long qResidue = qValue.mod(bigE).longValue() - 1;
+      scratch.residues[3 * k] = pResidue;
+      scratch.residues[3 * k + 1] = qResidue;
+      scratch.residues[3 * k + 2] = pResidue * qResidue % exponent;
+      Metrics.exponentTried();
+    }
+    Arrays.fill(scratch.residues, 3 * count, scratch.residues.length, 1);
+    long[] inverses = ModularInverse.inverseAll(scratch.residues, exponent);
+    for (int k = 0; k < count; k++) {
+      int i = start + k;
+      BigInteger pValue = scratch.p[k];
+      BigInteger qValue = scratch.q[k];
+      BigInteger pMinusOne = pValue.subtract(BigInteger.ONE);
+      BigInteger qMinusOne = qValue.subtract(BigInteger.ONE);
+      put(p, i, primeLimbs, pValue);
+      put(q, i, primeLimbs, qValue);
+      put(n, i, modulusLimbs, pValue.multiply(qValue));
+      put(dp, i, primeLimbs, inverseOfE(pMinusOne, exponent - inverses[3 * k], exponent));
+      put(dq, i, primeLimbs, inverseOfE(qMinusOne, exponent - inverses[3 * k + 1], exponent));
+      put(d, i, modulusLimbs, inverseOfE(pMinusOne.multiply(qMinusOne),
+          exponent - inverses[3 * k + 2], exponent));
+      put(qInv, i, primeLimbs, ModularInverse.inverse(qValue, pValue));
+      e.put(i, exponent);
+      scratch.p[k] = null;
+      scratch.q[k] = null;
+      Metrics.keyGenerated(scratch.starts[k]);
+    }
+  }
+
+  /**
+   * @param m The modulus.
+   * @param k -m^-1 mod e
+   * @param e The public exponent.
+   * @return e^-1 mod m
+   */
+  private static BigInteger inverseOfE(BigInteger m, long k, long e) {
+    return m.multiply(BigInteger.valueOf(k)).add(BigInteger.ONE)
+        .divide(BigInteger.valueOf(e));
+  }
+
+  /**
+   * Writes every component of one key in the order e, n, d, p, q, dp, dq, qInv, each in its
+   * fixed number of limbs.
+   * @param i The index of the key.
+   * @param out The buffer the limbs are put into at its position.
+   */
+  void putRecord(int i, LongBuffer out) {
+    out.put(e.get(checkIndex(i)));
+    putLimbs(n, i, modulusLimbs, out);
+    putLimbs(d, i, modulusLimbs, out);
+    putLimbs(p, i, primeLimbs, out);
+    putLimbs(q, i, primeLimbs, out);
+    putLimbs(dp, i, primeLimbs, out);
+    putLimbs(dq, i, primeLimbs, out);
+    putLimbs(qInv, i, primeLimbs, out);
+  }
+
+  /**
+   * @param modulusBits The size of the moduli in bits.
+   * @return The number of limbs {@link #putRecord(int, LongBuffer)} writes per key.
+   */
+  static int recordLimbs(int modulusBits) {
+    return 1 + 2 * limbs(modulusBits) + 5 * primeLimbs(modulusBits);
+  }
+
+  static int limbs(int bits) {
+    return (bits + Long.SIZE - 1) / Long.SIZE;
+  }
+
+  static int primeLimbs(int modulusBits) {
+    return limbs((modulusBits + 1) / 2);
+  }
+
+  private static void putLimbs(LongBuffer component, int i, int limbs, LongBuffer out) {
+    int offset = i * limbs;
+    for (int j = 0; j < limbs; j++) {
+      out.put(component.get(offset + j));
+    }
+  }
+
+  private LongBuffer allocate(int limbs) {
+    long length = (long) count * limbs;
+    if (length > Integer.MAX_VALUE / Long.BYTES) {
+      throw new IllegalArgumentException("The batch is too large");
+    }
+    if (offHeap) {
+      return ByteBuffer.allocateDirect((int) length * Long.BYTES).order(ByteOrder.nativeOrder())
+          .asLongBuffer();
+    }
+    return LongBuffer.allocate((int) length);
+  }
+
+  private int checkIndex(int i) {
+    if (i < 0 || i >= count) {
+      throw new IndexOutOfBoundsException("No key with index " + i);
+    }
+    return i;
+  }
+
+  private void put(LongBuffer component, int i, int limbs, BigInteger value) {
+    if (value.bitLength() > limbs * Long.SIZE) {
+      throw new IllegalArgumentException("The value does not fit into " + limbs + " limbs");
+    }
+    byte[] bytes = value.toByteArray();
+    int offset = checkIndex(i) * limbs;
+    int pos = bytes.length;
+    for (int j = 0; j < limbs; j++) {
+      long limb = 0;
+      for (int shift = 0; shift < Long.SIZE && pos > 0; shift += Byte.SIZE) {
+        limb |= (bytes[--pos] & 0xFFL) << shift;
+      }
+      component.put(offset + j, limb);
+    }
+  }
+
+  private BigInteger get(LongBuffer component, int i, int limbs) {
+    return toBigInteger(component, checkIndex(i) * limbs, limbs);
+  }
+
+  /**
+   * @param buffer The buffer holding the limbs, least significant limb first.
+   * @param offset The index of the least significant limb.
+   * @param limbs The number of limbs.
+   * @return The non-negative value of the limbs.
+   */
+  static BigInteger toBigInteger(LongBuffer buffer, int offset, int limbs) {
+    byte[] bytes = new byte[limbs * Long.BYTES];
+    for (int j = 0; j < limbs; j++) {
+      long limb = buffer.get(offset + j);
+      int pos = bytes.length - j * Long.BYTES;
+      for (int shift = 0; shift < Long.SIZE; shift += Byte.SIZE) {
+        bytes[--pos] = (byte) (limb >>> shift);
+      }
+    }
+    return new BigInteger(1, bytes);
+  }
+
+  private static long bytesNeeded(int count, int modulusBits) {
+    return (long) count * Long.BYTES * recordLimbs(modulusBits);
+  }
+
+  /**
+   * Fills the keys from index start (inclusive) to end (exclusive), splitting at chunk
+   * boundaries until a single chunk is left.
+   */
+  private static class GenerateTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final KeyPairBatch batch;
+    private final RandomStreams streams;
+    private final int start;
+    private final int end;
+
+    GenerateTask(KeyPairBatch batch, RandomStreams streams, int start, int end) {
+      this.batch = batch;
+      this.streams = streams;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected void compute() {
+      int numChunks = (end - start + CHUNK_SIZE - 1) / CHUNK_SIZE;
+      if (numChunks > 1) {
+        int middle = start + numChunks / 2 * CHUNK_SIZE;
+        invokeAll(new GenerateTask(batch, streams, start, middle),
+            new GenerateTask(batch, streams, middle, end));
+        return;
+      }
+      Random randGen = streams.stream(start / CHUNK_SIZE);
+      if (batch.modulusBits == RSASystem.SMALL_MODULUS_BITS) {
+        RunContext ctx = new RunContext(randGen);
+        for (int i = start; i < end; i++) {
+          batch.set(i, RSASystem.getPrimesAndKeyPairs(ctx, false));
+        }
+        return;
+      }
+      RSAKeyGenerator generator = new RSAKeyGenerator(batch.modulusBits, randGen);
+      generator.setPublicExponent(RSAKeyGenerator.F4);
+      batch.fillChunk(generator, start, end, SCRATCH.get());
+    }
+  }
+
+  /**
+   * The per-worker buffers of {@link #fillChunk(RSAKeyGenerator, int, int, Scratch)}.
+   */
+  private static final class Scratch {
+    final BigInteger[] p = new BigInteger[CHUNK_SIZE];
+    final BigInteger[] q = new BigInteger[CHUNK_SIZE];
+    final long[] starts = new long[CHUNK_SIZE];
+    //(p - 1) mod e, (q - 1) mod e and phi(n) mod e of every key
+    final long[] residues = new long[3 * CHUNK_SIZE];
+  }
+}
@@ -0,0 +1,248 @@
+package main;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A binary file of many key pairs that is opened without reading it. The file has three parts,
+ * all little endian:
+ * <ul>
+ * <li>a header: magic, version, count, modulusBits, modulusLimbs, primeLimbs (ints) and the
+ * offset of the records (long);</li>
+ * <li>an index: the offset of each record (longs);</li>
+ * <li>the records: e, n, d, p, q, dp, dq, qInv of each key, each in its fixed number of 64-bit
+ * limbs, least significant limb first, as in {@link KeyPairBatch}.</li>
+ * </ul>
+ * Opening a file checks the header and the index and maps the records with FileChannel.map; a key
+ * is only decoded when it is asked for, so opening reads 8 bytes per key and nothing else. Since
+ * the records have a fixed width, the offset of record i is computed from i; the index is a
+ * redundant copy that is checked against it once, when the file is opened.
+ * The records are mapped in segments of at most {@link #MAX_SEGMENT_BYTES} so that files larger
+ * than 2 GB can be read. Open files are thread-safe.
+ */
+public class KeyStoreFile implements Closeable {
+
+  public static final int MAGIC = 0x4B415352; //"RSAK"
+  public static final int VERSION = 1;
+  public static final int HEADER_SIZE = 32;
+  public static final int MAX_SEGMENT_BYTES = 1 << 30;
+  //the number of records written at once
+  private static final int WRITE_CHUNK = 1024;
+
+  private final RandomAccessFile file;
+  private final int count;
+  private final int modulusBits;
+  private final int modulusLimbs;
+  private final int primeLimbs;
+  private final int recordLimbs;
+  private final int recordsPerSegment;
+  private final LongBuffer[] segments;
+
+  private KeyStoreFile(RandomAccessFile file) throws IOException {
+    this.file = file;
+    FileChannel channel = file.getChannel();
+    long size = channel.size();
+    if (size < HEADER_SIZE) {
+      throw new IOException("Not a key store file");
+    }
+    ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    if (header.getInt() != MAGIC) {
+      throw new IOException("Not a key store file");
+    }
+    int version = header.getInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported key store version " + version);
+    }
+    this.count = header.getInt();
+    this.modulusBits = header.getInt();
+    this.modulusLimbs = header.getInt();
+    this.primeLimbs = header.getInt();
+    long recordsOffset = header.getLong();
+    if (count < 0 || modulusBits <= 0 || modulusLimbs != KeyPairBatch.limbs(modulusBits)
+        || primeLimbs != KeyPairBatch.primeLimbs(modulusBits)
+        || recordsOffset != HEADER_SIZE + (long) count * Long.BYTES) {
+      throw new IOException("The key store header is corrupt");
+    }
+    this.recordLimbs = KeyPairBatch.recordLimbs(modulusBits);
+    long recordBytes = (long) recordLimbs * Long.BYTES;
+    if (size != recordsOffset + count * recordBytes) {
+      throw new IOException("The key store file is truncated");
+    }
+    LongBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE,
+        (long) count * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+    for (int i = 0; i < count; i++) {
+      if (index.get(i) != recordsOffset + i * recordBytes) {
+        throw new IOException("The key store index is corrupt at key " + i);
+      }
+    }
+    this.recordsPerSegment = (int) Math.max(1, MAX_SEGMENT_BYTES / recordBytes);
+    int numSegments = (count + recordsPerSegment - 1) / recordsPerSegment;
+    this.segments = new LongBuffer[numSegments];
+    for (int s = 0; s < numSegments; s++) {
+      int first = s * recordsPerSegment;
+      int records = Math.min(recordsPerSegment, count - first);
+      segments[s] = channel.map(FileChannel.MapMode.READ_ONLY,
+          recordsOffset + first * recordBytes, records * recordBytes)
+          .order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+    }
+  }
+
+  /**
+   * Opens a key store file for reading.
+   * @param path The file.
+   * @return The open key store.
+   * @throws IOException If the file cannot be read or is not a valid key store.
+   */
+  public static KeyStoreFile open(File path) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(path, "r");
+    try {
+      return new KeyStoreFile(file);
+    } catch (IOException | RuntimeException e) {
+      file.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Writes a batch of keys to a key store file, replacing the file if it exists.
+   * @param path The file.
+   * @param batch The keys.
+   * @throws IOException If the file cannot be written.
+   */
+  public static void write(File path, KeyPairBatch batch) throws IOException {
+    int count = batch.size();
+    int modulusBits = batch.getModulusBits();
+    int recordLimbs = KeyPairBatch.recordLimbs(modulusBits);
+    long recordsOffset = HEADER_SIZE + (long) count * Long.BYTES;
+    RandomAccessFile file = new RandomAccessFile(path, "rw");
+    try {
+      file.setLength(0);
+      FileChannel channel = file.getChannel();
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      header.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(modulusBits)
+          .putInt(KeyPairBatch.limbs(modulusBits)).putInt(KeyPairBatch.primeLimbs(modulusBits))
+          .putLong(recordsOffset);
+      header.flip();
+      writeFully(channel, header);
+      ByteBuffer chunk = ByteBuffer.allocate(WRITE_CHUNK * recordLimbs * Long.BYTES)
+          .order(ByteOrder.LITTLE_ENDIAN);
+      LongBuffer limbs = chunk.asLongBuffer();
+      for (int start = 0; start < count; start += WRITE_CHUNK) {
+        int end = Math.min(count, start + WRITE_CHUNK);
+        limbs.clear();
+        for (int i = start; i < end; i++) {
+          limbs.put(recordsOffset + (long) i * recordLimbs * Long.BYTES);
+        }
+        chunk.clear();
+        chunk.limit(limbs.position() * Long.BYTES);
+        writeFully(channel, chunk);
+      }
+      for (int start = 0; start < count; start += WRITE_CHUNK) {
+        int end = Math.min(count, start + WRITE_CHUNK);
+        limbs.clear();
+        for (int i = start; i < end; i++) {
+          batch.putRecord(i, limbs);
+        }
+        chunk.clear();
+        chunk.limit(limbs.position() * Long.BYTES);
+        writeFully(channel, chunk);
+      }
+    } finally {
+      file.close();
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  public int size() {
+    return count;
+  }
+
+  public int getModulusBits() {
+    return modulusBits;
+  }
+
+  public BigInteger getN(int i) {
+    return get(i, 1, modulusLimbs);
+  }
+
+  public long getE(int i) {
+    int segment = checkIndex(i) / recordsPerSegment;
+    return segments[segment].get(recordStart(i, segment));
+  }
+
+  public BigInteger getD(int i) {
+    return get(i, 1 + modulusLimbs, modulusLimbs);
+  }
+
+  public BigInteger getP(int i) {
+    return get(i, 1 + 2 * modulusLimbs, primeLimbs);
+  }
+
+  public BigInteger getQ(int i) {
+    return get(i, 1 + 2 * modulusLimbs + primeLimbs, primeLimbs);
+  }
+
+  public BigInteger getDP(int i) {
+    return get(i, 1 + 2 * modulusLimbs + 2 * primeLimbs, primeLimbs);
+  }
+
+  public BigInteger getDQ(int i) {
+    return get(i, 1 + 2 * modulusLimbs + 3 * primeLimbs, primeLimbs);
+  }
+
+  public BigInteger getQInv(int i) {
+    return get(i, 1 + 2 * modulusLimbs + 4 * primeLimbs, primeLimbs);
+  }
+
+  /**
+   * Reads one key of the file.
+   * @param i The index of the key.
+   * @return The key pair, with the stored CRT form.
+   */
+  public RSAKeyPair getKeyPair(int i) {
+    return new RSAKeyPair(getN(i), BigInteger.valueOf(getE(i)), new RSAPrivateCrtKey(getP(i),
+        getQ(i), getD(i), getDP(i), getDQ(i), getQInv(i)));
+  }
+
+  /**
+   * Closes the file. The mappings stay valid until they are garbage collected, so keys must not
+   * be read afterwards.
+   */
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+
+  private BigInteger get(int i, int component, int limbs) {
+    int segment = checkIndex(i) / recordsPerSegment;
+    return KeyPairBatch.toBigInteger(segments[segment], recordStart(i, segment) + component,
+        limbs);
+  }
+
+  /**
+   * @return The index of the first limb of record i within its segment.
+   */
+  private int recordStart(int i, int segment) {
+    return (i - segment * recordsPerSegment) * recordLimbs;
+  }
+
+  private int checkIndex(int i) {
+    if (i < 0 || i >= count) {
+      throw new IndexOutOfBoundsException("No key with index " + i);
+    }
+    return i;
+  }
+}
@@ -0,0 +1,103 @@
+package main;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations with one bucket per power of two nanoseconds. Recording is a few
+ * LongAdder increments, so many threads can record at once without contention; percentiles are
+ * only as precise as the bucket, within a factor of two.
+ */
+public class LatencyHistogram {
+
+  private static final int NUM_BUCKETS = 64;
+
+  //bucket i counts durations d with 2^i <= d + 1 < 2^(i+1)
+  private final LongAdder[] buckets = new LongAdder[NUM_BUCKETS];
+  private final LongAdder total = new LongAdder();
+
+  public LatencyHistogram() {
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      buckets[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * @param nanos The duration in nanoseconds, negative values count as zero.
+   */
+  public void record(long nanos) {
+    nanos = Math.max(nanos, 0);
+    buckets[63 - Long.numberOfLeadingZeros(nanos + 1)].increment();
+    total.add(nanos);
+  }
+
+  public void reset() {
+    for (LongAdder bucket : buckets) {
+      bucket.reset();
+    }
+    total.reset();
+  }
+
+  /**
+   * @return The counts recorded so far. Concurrent recordings may or may not be included.
+   */
+  public Snapshot snapshot() {
+    long[] counts = new long[NUM_BUCKETS];
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      counts[i] = buckets[i].sum();
+    }
+    return new Snapshot(counts, total.sum());
+  }
+
+  /**
+   * The state of a histogram at one point in time.
+   */
+  public static class Snapshot {
+    private final long[] counts;
+    private final long count;
+    private final long totalNanos;
+
+    Snapshot(long[] counts, long totalNanos) {
+      long count = 0;
+      for (long c : counts) {
+        count += c;
+      }
+      this.counts = counts;
+      this.count = count;
+      this.totalNanos = totalNanos;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * @return The mean duration in nanoseconds, or zero if nothing was recorded.
+     */
+    public double getMean() {
+      return count == 0 ? 0 : (double) totalNanos / count;
+    }
+
+    /**
+     * @param fraction The fraction of durations that are at most the result, 0 <= fraction <= 1
+     * @return The upper bound of the bucket holding the percentile in nanoseconds, or zero if
+     *         nothing was recorded.
+     */
+    public long getPercentile(double fraction) {
+      long rank = (long) Math.ceil(fraction * count);
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank && seen > 0) {
+          return i >= 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 2;
+        }
+      }
+      return 0;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("count = %d, mean = %.0f ns, p50 <= %d ns, p99 <= %d ns",
+          count, getMean(), getPercentile(0.5), getPercentile(0.99));
+    }
+  }
+}
@@ -0,0 +1,261 @@
+package main;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of key generation and signing. Recording is off until
+ * {@link #setEnabled(boolean)} is called or the MBean is registered; while it is off every
+ * recording method returns after reading one volatile flag. Counters are LongAdders, so threads
+ * generating keys in parallel do not contend on them.
+ */
+public class Metrics implements MetricsMXBean {
+
+  public static final String OBJECT_NAME = "main:type=Metrics";
+  public static final Metrics GLOBAL = new Metrics();
+
+  private static volatile boolean enabled;
+
+  private final LongAdder candidatesDrawn = new LongAdder();
+  private final LongAdder candidatesRejected = new LongAdder();
+  private final LongAdder candidatesSieved = new LongAdder();
+  private final LongAdder primalityRounds = new LongAdder();
+  private final LongAdder keyRetries = new LongAdder();
+  private final LongAdder exponentsTried = new LongAdder();
+  private final LongAdder eeaIterations = new LongAdder();
+  private final LongAdder squarings = new LongAdder();
+  private final LongAdder multiplications = new LongAdder();
+  private final LatencyHistogram keyGenerationLatency = new LatencyHistogram();
+  private final LatencyHistogram signatureLatency = new LatencyHistogram();
+
+  private Metrics() {
+  }
+
+  /**
+   * Enables recording and registers {@link #GLOBAL} with the platform MBean server, unless it is
+   * registered already.
+   */
+  public static synchronized void registerMBean() throws JMException {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName(OBJECT_NAME);
+    if (!server.isRegistered(name)) {
+      server.registerMBean(GLOBAL, name);
+    }
+    enabled = true;
+  }
+
+  /**
+   * A candidate was handed to a primality test.
+   */
+  static void candidateDrawn() {
+    if (enabled) {
+      GLOBAL.candidatesDrawn.increment();
+    }
+  }
+
+  /**
+   * A candidate failed its primality test.
+   */
+  static void candidateRejected() {
+    if (enabled) {
+      GLOBAL.candidatesRejected.increment();
+    }
+  }
+
+  /**
+   * @param count The number of candidates the sieve removed before any test.
+   */
+  static void candidatesSieved(int count) {
+    if (enabled) {
+      GLOBAL.candidatesSieved.add(count);
+    }
+  }
+
+  /**
+   * @param count The number of Miller-Rabin rounds run on one candidate.
+   */
+  static void primalityRounds(int count) {
+    if (enabled) {
+      GLOBAL.primalityRounds.add(count);
+    }
+  }
+
+  /**
+   * A key pair had to be thrown away and generated again.
+   */
+  static void keyRetry() {
+    if (enabled) {
+      GLOBAL.keyRetries.increment();
+    }
+  }
+
+  /**
+   * A public exponent was tried.
+   */
+  static void exponentTried() {
+    if (enabled) {
+      GLOBAL.exponentsTried.increment();
+    }
+  }
+
+  /**
+   * @param count The number of iterations of one run of the classic or binary extended Euclidean
+   * algorithm.
+   */
+  static void eeaIterations(int count) {
+    if (enabled) {
+      GLOBAL.eeaIterations.add(count);
+    }
+  }
+
+  /**
+   * @param numSquarings The number of squarings of one exponentiation.
+   * @param numMultiplications The number of other multiplications of the exponentiation.
+   */
+  static void exponentiation(int numSquarings, int numMultiplications) {
+    if (enabled) {
+      GLOBAL.squarings.add(numSquarings);
+      GLOBAL.multiplications.add(numMultiplications);
+    }
+  }
+
+  /**
+   * @return The start time to pass to keyGenerated() or signed(), or zero if recording is off.
+   */
+  static long startTimer() {
+    return enabled ? System.nanoTime() : 0;
+  }
+
+  /**
+   * @param start The value startTimer() returned when the key generation began.
+   */
+  static void keyGenerated(long start) {
+    if (enabled && start != 0) {
+      GLOBAL.keyGenerationLatency.record(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * @param start The value startTimer() returned when the signature began.
+   */
+  static void signed(long start) {
+    if (enabled && start != 0) {
+      GLOBAL.signatureLatency.record(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * @return The values of every counter and histogram. Counters are read one after another, so
+   *         the snapshot is not atomic while other threads record.
+   */
+  public MetricsSnapshot snapshot() {
+    return new MetricsSnapshot(candidatesDrawn.sum(), candidatesRejected.sum(),
+        candidatesSieved.sum(), primalityRounds.sum(), keyRetries.sum(), exponentsTried.sum(),
+        eeaIterations.sum(), squarings.sum(), multiplications.sum(),
+        keyGenerationLatency.snapshot(), signatureLatency.snapshot());
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @Override
+  public void setEnabled(boolean on) {
+    enabled = on;
+  }
+
+  @Override
+  public long getCandidatesDrawn() {
+    return candidatesDrawn.sum();
+  }
+
+  @Override
+  public long getCandidatesRejected() {
+    return candidatesRejected.sum();
+  }
+
+  @Override
+  public long getCandidatesSieved() {
+    return candidatesSieved.sum();
+  }
+
+  @Override
+  public long getPrimalityRounds() {
+    return primalityRounds.sum();
+  }
+
+  @Override
+  public long getKeyRetries() {
+    return keyRetries.sum();
+  }
+
+  @Override
+  public long getExponentsTried() {
+    return exponentsTried.sum();
+  }
+
+  @Override
+  public long getEeaIterations() {
+    return eeaIterations.sum();
+  }
+
+  @Override
+  public long getSquarings() {
+    return squarings.sum();
+  }
+
+  @Override
+  public long getMultiplications() {
+    return multiplications.sum();
+  }
+
+  @Override
+  public long getKeysGenerated() {
+    return keyGenerationLatency.snapshot().getCount();
+  }
+
+  @Override
+  public double getKeyGenerationMeanNanos() {
+    return keyGenerationLatency.snapshot().getMean();
+  }
+
+  @Override
+  public long getKeyGenerationP99Nanos() {
+    return keyGenerationLatency.snapshot().getPercentile(0.99);
+  }
+
+  @Override
+  public long getSignatures() {
+    return signatureLatency.snapshot().getCount();
+  }
+
+  @Override
+  public double getSignatureMeanNanos() {
+    return signatureLatency.snapshot().getMean();
+  }
+
+  @Override
+  public long getSignatureP99Nanos() {
+    return signatureLatency.snapshot().getPercentile(0.99);
+  }
+
+  @Override
+  public void reset() {
+    candidatesDrawn.reset();
+    candidatesRejected.reset();
+    candidatesSieved.reset();
+    primalityRounds.reset();
+    keyRetries.reset();
+    exponentsTried.reset();
+    eeaIterations.reset();
+    squarings.reset();
+    multiplications.reset();
+    keyGenerationLatency.reset();
+    signatureLatency.reset();
+  }
+}
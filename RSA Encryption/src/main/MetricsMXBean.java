@@ -0,0 +1,43 @@
+package main;
+
+/**
+ * The JMX view of {@link Metrics}. Durations are in nanoseconds.
+ */
+public interface MetricsMXBean {
+
+  boolean isEnabled();
+
+  void setEnabled(boolean enabled);
+
+  long getCandidatesDrawn();
+
+  long getCandidatesRejected();
+
+  long getCandidatesSieved();
+
+  long getPrimalityRounds();
+
+  long getKeyRetries();
+
+  long getExponentsTried();
+
+  long getEeaIterations();
+
+  long getSquarings();
+
+  long getMultiplications();
+
+  long getKeysGenerated();
+
+  double getKeyGenerationMeanNanos();
+
+  long getKeyGenerationP99Nanos();
+
+  long getSignatures();
+
+  double getSignatureMeanNanos();
+
+  long getSignatureP99Nanos();
+
+  void reset();
+}
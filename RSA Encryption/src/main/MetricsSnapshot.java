@@ -0,0 +1,118 @@
+package main;
+
+/**
+ * The values of the {@link Metrics} at one point in time.
+ */
+public class MetricsSnapshot {
+
+  private final long candidatesDrawn;
+  private final long candidatesRejected;
+  private final long candidatesSieved;
+  private final long primalityRounds;
+  private final long keyRetries;
+  private final long exponentsTried;
+  private final long eeaIterations;
+  private final long squarings;
+  private final long multiplications;
+  private final LatencyHistogram.Snapshot keyGenerationLatency;
+  private final LatencyHistogram.Snapshot signatureLatency;
+
+  MetricsSnapshot(long candidatesDrawn, long candidatesRejected, long candidatesSieved,
+      long primalityRounds, long keyRetries, long exponentsTried, long eeaIterations,
+      long squarings, long multiplications, LatencyHistogram.Snapshot keyGenerationLatency,
+      LatencyHistogram.Snapshot signatureLatency) {
+    this.candidatesDrawn = candidatesDrawn;
+    this.candidatesRejected = candidatesRejected;
+    this.candidatesSieved = candidatesSieved;
+    this.primalityRounds = primalityRounds;
+    this.keyRetries = keyRetries;
+    this.exponentsTried = exponentsTried;
+    this.eeaIterations = eeaIterations;
+    this.squarings = squarings;
+    this.multiplications = multiplications;
+    this.keyGenerationLatency = keyGenerationLatency;
+    this.signatureLatency = signatureLatency;
+  }
+
+  /**
+   * @return The number of candidates handed to a primality test.
+   */
+  public long getCandidatesDrawn() {
+    return candidatesDrawn;
+  }
+
+  /**
+   * @return The number of candidates that failed their primality test.
+   */
+  public long getCandidatesRejected() {
+    return candidatesRejected;
+  }
+
+  /**
+   * @return The number of candidates removed by the small prime sieve without a test.
+   */
+  public long getCandidatesSieved() {
+    return candidatesSieved;
+  }
+
+  /**
+   * @return The number of Miller-Rabin rounds run, deterministic and random-base.
+   */
+  public long getPrimalityRounds() {
+    return primalityRounds;
+  }
+
+  /**
+   * @return The number of key pairs that were thrown away and generated again.
+   */
+  public long getKeyRetries() {
+    return keyRetries;
+  }
+
+  /**
+   * @return The number of public exponents tried.
+   */
+  public long getExponentsTried() {
+    return exponentsTried;
+  }
+
+  /**
+   * @return The number of iterations of the extended Euclidean algorithm.
+   */
+  public long getEeaIterations() {
+    return eeaIterations;
+  }
+
+  /**
+   * @return The number of squarings of fastExponentiation.
+   */
+  public long getSquarings() {
+    return squarings;
+  }
+
+  /**
+   * @return The number of other multiplications of fastExponentiation.
+   */
+  public long getMultiplications() {
+    return multiplications;
+  }
+
+  public LatencyHistogram.Snapshot getKeyGenerationLatency() {
+    return keyGenerationLatency;
+  }
+
+  public LatencyHistogram.Snapshot getSignatureLatency() {
+    return signatureLatency;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("candidates drawn = %d, rejected = %d, sieved = %d\n"
+        + "primality rounds = %d, key retries = %d, exponents tried = %d\n"
+        + "EEA iterations = %d, squarings = %d, multiplications = %d\n"
+        + "key generation: %s\nsignatures: %s\n",
+        candidatesDrawn, candidatesRejected, candidatesSieved, primalityRounds, keyRetries,
+        exponentsTried, eeaIterations, squarings, multiplications, keyGenerationLatency,
+        signatureLatency);
+  }
+}
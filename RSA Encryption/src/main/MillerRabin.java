@@ -0,0 +1,127 @@
+package main;
+
+import java.math.BigInteger;
+
+/**
+ * Deterministic Miller-Rabin primality tests for int and long values. Instead of random bases,
+ * each test uses a fixed set of witnesses that is known to expose every composite in the range,
+ * so the answer is exact. Larger numbers are tested with BigInteger.isProbablePrime, whose rounds
+ * are counted as well.
+ */
+public class MillerRabin {
+
+  //enough for every n < 4,759,123,141 (Jaeschke)
+  private static final long[] INT_WITNESSES = { 2, 7, 61 };
+  //enough for every n < 2^64 (Sinclair)
+  private static final long[] LONG_WITNESSES =
+      { 2, 325, 9375, 28178, 450775, 9780504, 1795265022 };
+  private static final int[] SMALL_PRIMES = { 2, 3, 5, 7, 11, 13, 17, 19, 23, 29, 31, 37 };
+
+  private MillerRabin() {
+  }
+
+  /**
+   * Determines whether a number is prime.
+   * @param n The number being tested.
+   * @return True iff n is prime.
+   */
+  public static boolean isPrime(int n) {
+    return isPrime(n, INT_WITNESSES);
+  }
+
+  /**
+   * Determines whether a number is prime.
+   * @param n The number being tested.
+   * @return True iff n is prime.
+   */
+  public static boolean isPrime(long n) {
+    return isPrime(n, n <= Integer.MAX_VALUE ? INT_WITNESSES : LONG_WITNESSES);
+  }
+
+  /**
+   * Determines whether a number is probably prime with BigInteger.isProbablePrime and counts the
+   * Miller-Rabin rounds it runs: all of them for a probable prime, and one for a composite, which
+   * nearly always fails the first round.
+   * @param n The number being tested.
+   * @param certainty The certainty passed to BigInteger.isProbablePrime.
+   * @return True if n is probably prime.
+   */
+  public static boolean isProbablePrime(BigInteger n, int certainty) {
+    boolean prime = n.isProbablePrime(certainty);
+    Metrics.primalityRounds(prime ? probablePrimeRounds(n.bitLength(), certainty) : 1);
+    return prime;
+  }
+
+  /**
+   * The number of random-base Miller-Rabin rounds BigInteger.isProbablePrime runs on a prime.
+   * It is capped by the size of the number, since each round is more reliable for larger numbers.
+   * @param bits The size of the number in bits.
+   * @param certainty The requested certainty.
+   * @return The number of rounds.
+   */
+  protected static int probablePrimeRounds(int bits, int certainty) {
+    if (certainty <= 0) {
+      return 0;
+    }
+    int rounds = (Math.min(certainty, Integer.MAX_VALUE - 1) + 1) / 2;
+    int limit = bits < 100 ? 50 : bits < 256 ? 27 : bits < 512 ? 15 : bits < 768 ? 8
+        : bits < 1024 ? 4 : 2;
+    return Math.min(rounds, limit);
+  }
+
+  private static boolean isPrime(long n, long[] witnesses) {
+    if (n < 2) {
+      return false;
+    }
+    for (int p : SMALL_PRIMES) {
+      if (n % p == 0) {
+        return n == p;
+      }
+    }
+    //n - 1 = oddPart * 2^twos
+    long nMinusOne = n - 1;
+    int twos = Long.numberOfTrailingZeros(nMinusOne);
+    long oddPart = nMinusOne >>> twos;
+    Montgomery mont = new Montgomery(n);
+    int rounds = 0;
+    for (long a : witnesses) {
+      if (a % n == 0) {
+        continue;
+      }
+      rounds++;
+      if (!passes(mont, a, oddPart, twos)) {
+        Metrics.primalityRounds(rounds);
+        return false;
+      }
+    }
+    Metrics.primalityRounds(rounds);
+    return true;
+  }
+
+  /**
+   * Runs one round of the Miller-Rabin test.
+   * @param mont Montgomery context for the candidate n.
+   * @param a The witness, a >= 0
+   * @param oddPart The odd part of n - 1
+   * @param twos The number of factors of two in n - 1
+   * @return True if n is a strong probable prime to base a.
+   */
+  protected static boolean passes(Montgomery mont, long a, long oddPart, int twos) {
+    long one = mont.one();
+    long minusOne = mont.getModulus() - one;
+    long y = mont.powMontgomery(mont.toMontgomery(a), oddPart);
+    if (y == one || y == minusOne) {
+      return true;
+    }
+    for (int i = 1; i < twos; i++) {
+      y = mont.multiply(y, y);
+      if (y == minusOne) {
+        return true;
+      }
+      if (y == one) {
+        return false;
+      }
+    }
+    return false;
+  }
+}
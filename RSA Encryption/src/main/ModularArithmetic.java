@@ -0,0 +1,162 @@
+package main;
+
+import java.math.BigInteger;
+
+/**
+ * Modular multiplication and exponentiation that cannot overflow, picking the cheapest
+ * representation for the size of the modulus:
+ * <ul>
+ * <li>moduli below 2^31: the product of two residues fits in a long, so a long multiplication
+ * and one remainder suffice;</li>
+ * <li>other long moduli: the full 128-bit product is formed with
+ * {@link Montgomery#unsignedMultiplyHigh(long, long)}. Exponentiation modulo an odd number uses
+ * Montgomery multiplication; an even modulus n = 2^k * m is split into the odd part m and the
+ * power of two 2^k, whose results are joined with the Chinese remainder theorem;</li>
+ * <li>larger moduli: BigInteger.</li>
+ * </ul>
+ * Every method returns the same value as BigInteger.modPow or BigInteger.multiply followed by
+ * mod would.
+ */
+public class ModularArithmetic {
+
+  private static final long INT_MODULUS_LIMIT = 1L << 31;
+
+  private ModularArithmetic() {
+  }
+
+  /**
+   * @param a The first factor.
+   * @param b The second factor.
+   * @param n The modulus, n > 0
+   * @return a * b mod n, between 0 and n - 1
+   */
+  public static int multiply(int a, int b, int n) {
+    return (int) Math.floorMod((long) a * b, (long) n);
+  }
+
+  /**
+   * @param a The first factor.
+   * @param b The second factor.
+   * @param n The modulus, n > 0
+   * @return a * b mod n, between 0 and n - 1
+   */
+  public static long multiply(long a, long b, long n) {
+    checkModulus(n);
+    a = Math.floorMod(a, n);
+    b = Math.floorMod(b, n);
+    if (n < INT_MODULUS_LIMIT) {
+      return a * b % n;
+    }
+    long hi = Montgomery.unsignedMultiplyHigh(a, b);
+    long lo = a * b;
+    if (hi == 0) {
+      return Long.remainderUnsigned(lo, n);
+    }
+    //a, b < n means hi < n, so hi is already reduced; shift in the bits of lo one at a time
+    long r = hi;
+    for (int i = 63; i >= 0; i--) {
+      r = addMod(r, r, n);
+      if ((lo >>> i & 1) != 0) {
+        r = addMod(r, 1, n);
+      }
+    }
+    return r;
+  }
+
+  /**
+   * @param a The base.
+   * @param x The exponent, x >= 0
+   * @param n The modulus, n > 0
+   * @return a^x mod n, between 0 and n - 1
+   */
+  public static int pow(int a, int x, int n) {
+    return (int) pow((long) a, (long) x, (long) n);
+  }
+
+  /**
+   * @param a The base.
+   * @param x The exponent, x >= 0
+   * @param n The modulus, n > 0
+   * @return a^x mod n, between 0 and n - 1
+   */
+  public static long pow(long a, long x, long n) {
+    checkModulus(n);
+    if (x < 0) {
+      throw new IllegalArgumentException("The exponent must not be negative");
+    }
+    a = Math.floorMod(a, n);
+    if (n == 1) {
+      return 0;
+    }
+    if (n < INT_MODULUS_LIMIT) {
+      return powSmall(a, x, n);
+    }
+    if ((n & 1) == 1) {
+      return new Montgomery(n).pow(a, x);
+    }
+    int k = Long.numberOfTrailingZeros(n);
+    long m = n >>> k;
+    long mask = (1L << k) - 1;
+    long r2 = powModWord(a, x) & mask;
+    if (m == 1) {
+      return r2;
+    }
+    long r1 = new Montgomery(m).pow(a % m, x);
+    //n = m * 2^k with m odd: the result is r1 + m * h with h = (r2 - r1) * m^-1 mod 2^k
+    long h = (r2 - r1) * Montgomery.inverseModWord(m) & mask;
+    return r1 + m * h;
+  }
+
+  /**
+   * @param a The base, a >= 0
+   * @param x The exponent, x >= 0
+   * @param n The modulus, n > 0
+   * @return a^x mod n
+   */
+  public static BigInteger pow(BigInteger a, BigInteger x, BigInteger n) {
+    if (n.bitLength() < Long.SIZE && x.bitLength() < Long.SIZE) {
+      return BigInteger.valueOf(pow(a.mod(n).longValue(), x.longValue(), n.longValue()));
+    }
+    return a.modPow(x, n);
+  }
+
+  private static long powSmall(long a, long x, long n) {
+    long y = 1;
+    for (int i = 63 - Long.numberOfLeadingZeros(x); i >= 0; i--) {
+      y = y * y % n;
+      if ((x >>> i & 1) != 0) {
+        y = a * y % n;
+      }
+    }
+    return y;
+  }
+
+  /**
+   * @return a^x mod 2^64
+   */
+  private static long powModWord(long a, long x) {
+    long y = 1;
+    for (int i = 63 - Long.numberOfLeadingZeros(x); i >= 0; i--) {
+      y *= y;
+      if ((x >>> i & 1) != 0) {
+        y *= a;
+      }
+    }
+    return y;
+  }
+
+  private static long addMod(long a, long b, long n) {
+    long sum = a + b;
+    //n < 2^63, so the sum cannot wrap past 2^64
+    if (Long.compareUnsigned(sum, n) >= 0) {
+      sum -= n;
+    }
+    return sum;
+  }
+
+  private static void checkModulus(long n) {
+    if (n <= 0) {
+      throw new IllegalArgumentException("The modulus must be a positive integer value");
+    }
+  }
+}
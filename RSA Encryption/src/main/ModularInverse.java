@@ -0,0 +1,299 @@
+package main;
+
+import java.math.BigInteger;
+
+/**
+ * Modular inverses without division-heavy Euclid loops. Word-sized inverses use the binary
+ * extended GCD, which only shifts, adds and subtracts. BigInteger inverses use Lehmer's algorithm,
+ * which runs most Euclid steps on the leading 62 bits of the numbers in long arithmetic and only
+ * applies the combined steps to the full numbers once per round. Many values with the same
+ * modulus can be inverted at once with Montgomery's trick, which costs one inversion and
+ * 3(n-1) multiplications.
+ */
+public class ModularInverse {
+
+  //bits of the leading parts used by Lehmer's algorithm; leaves room for the cofactors in a long
+  private static final int LEHMER_BITS = 62;
+
+  private ModularInverse() {
+  }
+
+  /**
+   * @param a The number being inverted.
+   * @param m The modulus, m > 0
+   * @return a^-1 mod m, between 0 and m - 1
+   * @throws ArithmeticException If a is not invertible modulo m.
+   */
+  public static long inverse(long a, long m) {
+    if (m <= 0) {
+      throw new ArithmeticException("The modulus must be positive");
+    }
+    if (m == 1) {
+      return 0;
+    }
+    long res = inverseOrZero(Math.floorMod(a, m), m);
+    if (res == 0) {
+      throw new ArithmeticException("Not invertible");
+    }
+    return res;
+  }
+
+  /**
+   * @param a The number being inverted, 0 <= a < m
+   * @param m The modulus, m > 1
+   * @return a^-1 mod m, or zero if a is not invertible.
+   */
+  static long inverseOrZero(long a, long m) {
+    if ((m & 1) == 1) {
+      return inverseOdd(a, m);
+    }
+    if ((a & 1) == 0) {
+      return 0;
+    }
+    //m = odd * 2^k: invert modulo both parts and join the results with CRT
+    int k = Long.numberOfTrailingZeros(m);
+    long odd = m >>> k;
+    long mask = (1L << k) - 1;
+    long r2 = Montgomery.inverseModWord(a) & mask;
+    if (odd == 1) {
+      return r2;
+    }
+    long r1 = inverseOdd(a % odd, odd);
+    if (r1 == 0) {
+      return 0;
+    }
+    long h = (r2 - r1) * Montgomery.inverseModWord(odd) & mask;
+    return r1 + odd * h;
+  }
+
+  /**
+   * Binary extended GCD. Keeps u = x1 * a and v = x2 * a modulo m while u and v are reduced to
+   * their GCD.
+   */
+  private static long inverseOdd(long a, long m) {
+    if (a == 0) {
+      return 0;
+    }
+    long u = a;
+    long v = m;
+    long x1 = 1;
+    long x2 = 0;
+    int iterations = 0;
+    while (u != 1 && v != 1) {
+      iterations++;
+      while ((u & 1) == 0) {
+        u >>>= 1;
+        x1 = half(x1, m);
+      }
+      while ((v & 1) == 0) {
+        v >>>= 1;
+        x2 = half(x2, m);
+      }
+      if (u >= v) {
+        u -= v;
+        x1 = subtract(x1, x2, m);
+        if (u == 0) {
+          //the GCD is v > 1
+          Metrics.eeaIterations(iterations);
+          return 0;
+        }
+      } else {
+        v -= u;
+        x2 = subtract(x2, x1, m);
+      }
+    }
+    Metrics.eeaIterations(iterations);
+    return u == 1 ? x1 : x2;
+  }
+
+  /**
+   * @return x / 2 mod m for odd m
+   */
+  private static long half(long x, long m) {
+    return (x & 1) == 0 ? x >>> 1 : (x >>> 1) + (m >>> 1) + 1;
+  }
+
+  private static long subtract(long x, long y, long m) {
+    long diff = x - y;
+    return diff < 0 ? diff + m : diff;
+  }
+
+  /**
+   * @param a The number being inverted.
+   * @param m The modulus, m > 0
+   * @return a^-1 mod m, between 0 and m - 1
+   * @throws ArithmeticException If a is not invertible modulo m.
+   */
+  public static BigInteger inverse(BigInteger a, BigInteger m) {
+    if (m.signum() <= 0) {
+      throw new ArithmeticException("The modulus must be positive");
+    }
+    if (m.bitLength() < Long.SIZE) {
+      return BigInteger.valueOf(inverse(a.mod(m).longValue(), m.longValue()));
+    }
+    return lehmer(a.mod(m), m);
+  }
+
+  /**
+   * Lehmer's extended GCD (Knuth, Algorithm 4.5.2L) on (m, a), tracking only the cofactor of a.
+   * Invariant: x = tx * a and y = ty * a modulo m.
+   */
+  private static BigInteger lehmer(BigInteger a, BigInteger m) {
+    BigInteger x = m;
+    BigInteger y = a;
+    BigInteger tx = BigInteger.ZERO;
+    BigInteger ty = BigInteger.ONE;
+    while (y.bitLength() > LEHMER_BITS) {
+      int shift = x.bitLength() - LEHMER_BITS;
+      long xh = x.shiftRight(shift).longValue();
+      long yh = y.shiftRight(shift).longValue();
+      //x' = ca * x + cb * y and y' = cc * x + cd * y
+      long ca = 1, cb = 0, cc = 0, cd = 1;
+      while (yh + cc != 0 && yh + cd != 0) {
+        long q = (xh + ca) / (yh + cc);
+        if (q != (xh + cb) / (yh + cd)) {
+          break;
+        }
+        long t = ca - q * cc;
+        ca = cc;
+        cc = t;
+        t = cb - q * cd;
+        cb = cd;
+        cd = t;
+        t = xh - q * yh;
+        xh = yh;
+        yh = t;
+      }
+      if (cb == 0) {
+        //the leading parts did not determine a single quotient
+        BigInteger[] qr = x.divideAndRemainder(y);
+        BigInteger t = tx.subtract(qr[0].multiply(ty));
+        x = y;
+        y = qr[1];
+        tx = ty;
+        ty = t;
+      } else {
+        BigInteger nx = combine(ca, x, cb, y);
+        BigInteger ny = combine(cc, x, cd, y);
+        BigInteger ntx = combine(ca, tx, cb, ty);
+        BigInteger nty = combine(cc, tx, cd, ty);
+        x = nx;
+        y = ny;
+        tx = ntx;
+        ty = nty;
+      }
+    }
+    //finish in long arithmetic for the remainders, the cofactors stay multi-limb
+    while (y.signum() != 0) {
+      if (x.bitLength() < Long.SIZE) {
+        long xl = x.longValue();
+        long yl = y.longValue();
+        while (yl != 0) {
+          long q = xl / yl;
+          long r = xl - q * yl;
+          BigInteger t = tx.subtract(ty.multiply(BigInteger.valueOf(q)));
+          xl = yl;
+          yl = r;
+          tx = ty;
+          ty = t;
+        }
+        x = BigInteger.valueOf(xl);
+        break;
+      }
+      BigInteger[] qr = x.divideAndRemainder(y);
+      BigInteger t = tx.subtract(qr[0].multiply(ty));
+      x = y;
+      y = qr[1];
+      tx = ty;
+      ty = t;
+    }
+    if (!x.equals(BigInteger.ONE)) {
+      throw new ArithmeticException("Not invertible");
+    }
+    return tx.mod(m);
+  }
+
+  private static BigInteger combine(long c1, BigInteger v1, long c2, BigInteger v2) {
+    return v1.multiply(BigInteger.valueOf(c1)).add(v2.multiply(BigInteger.valueOf(c2)));
+  }
+
+  /**
+   * Inverts every value with Montgomery's trick: the prefix products are inverted once and the
+   * individual inverses are peeled off with two multiplications each. Odd moduli of 2^31 and
+   * above multiply in Montgomery form, so no product needs a 128-bit remainder.
+   * @param values The numbers being inverted.
+   * @param m The modulus, m > 0
+   * @return The inverses modulo m, in the order of the values.
+   * @throws ArithmeticException If any of the values is not invertible modulo m.
+   */
+  public static long[] inverseAll(long[] values, long m) {
+    int count = values.length;
+    long[] res = new long[count];
+    if (count == 0) {
+      return res;
+    }
+    if (m > Integer.MAX_VALUE && (m & 1) == 1) {
+      return inverseAllMontgomery(values, new Montgomery(m), res);
+    }
+    //res[i] holds the product of values[0..i] until it is replaced by the inverse
+    res[0] = Math.floorMod(values[0], m);
+    for (int i = 1; i < count; i++) {
+      res[i] = ModularArithmetic.multiply(res[i - 1], values[i], m);
+    }
+    long inv = inverse(res[count - 1], m);
+    for (int i = count - 1; i > 0; i--) {
+      long value = Math.floorMod(values[i], m);
+      res[i] = ModularArithmetic.multiply(inv, res[i - 1], m);
+      inv = ModularArithmetic.multiply(inv, value, m);
+    }
+    res[0] = inv;
+    return res;
+  }
+
+  /**
+   * Montgomery's trick with the prefix products kept in Montgomery form.
+   * @param res The array the inverses are written to, as long as values.
+   */
+  private static long[] inverseAllMontgomery(long[] values, Montgomery mont, long[] res) {
+    long m = mont.getModulus();
+    int count = values.length;
+    res[0] = mont.toMontgomery(Math.floorMod(values[0], m));
+    for (int i = 1; i < count; i++) {
+      res[i] = mont.multiply(res[i - 1], mont.toMontgomery(Math.floorMod(values[i], m)));
+    }
+    long inv = mont.toMontgomery(inverse(mont.fromMontgomery(res[count - 1]), m));
+    for (int i = count - 1; i > 0; i--) {
+      res[i] = mont.fromMontgomery(mont.multiply(inv, res[i - 1]));
+      inv = mont.multiply(inv, mont.toMontgomery(Math.floorMod(values[i], m)));
+    }
+    res[0] = mont.fromMontgomery(inv);
+    return res;
+  }
+
+  /**
+   * Inverts every value with Montgomery's trick: the prefix products are inverted once and the
+   * individual inverses are peeled off with two multiplications each.
+   * @param values The numbers being inverted.
+   * @param m The modulus, m > 0
+   * @return The inverses modulo m, in the order of the values.
+   * @throws ArithmeticException If any of the values is not invertible modulo m.
+   */
+  public static BigInteger[] inverseAll(BigInteger[] values, BigInteger m) {
+    int count = values.length;
+    BigInteger[] res = new BigInteger[count];
+    if (count == 0) {
+      return res;
+    }
+    res[0] = values[0].mod(m);
+    for (int i = 1; i < count; i++) {
+      res[i] = res[i - 1].multiply(values[i]).mod(m);
+    }
+    BigInteger inv = inverse(res[count - 1], m);
+    for (int i = count - 1; i > 0; i--) {
+      res[i] = inv.multiply(res[i - 1]).mod(m);
+      inv = inv.multiply(values[i]).mod(m);
+    }
+    res[0] = inv;
+    return res;
+  }
+}
@@ -0,0 +1,158 @@
+package main;
+
+/**
+ * Montgomery arithmetic for odd moduli that fit into a positive long. Values are kept in
+ * Montgomery form (a * R mod n with R = 2^64) so that every multiplication is reduced with
+ * shifts and multiplications only; the single division needed to leave the form is replaced by
+ * one more Montgomery multiplication.
+ */
+public class Montgomery {
+
+  private static final long LOW_32_BITS = 0xFFFFFFFFL;
+
+  private final long n;
+  //-n^-1 mod 2^64
+  private final long nPrime;
+  //R mod n, the Montgomery form of 1
+  private final long one;
+  //R^2 mod n, used to move values into Montgomery form
+  private final long rSquared;
+
+  /**
+   * Creates the Montgomery context for the modulus.
+   * @param n The modulus. The following needs to apply: n is odd and n > 1
+   */
+  public Montgomery(long n) {
+    if (n <= 1 || (n & 1) == 0) {
+      throw new IllegalArgumentException("The modulus must be odd and greater than one");
+    }
+    this.n = n;
+    this.nPrime = -inverseModWord(n);
+    //R mod n = (2^64 - n) mod n
+    this.one = Long.remainderUnsigned(-n, n);
+    long r = one;
+    for (int i = 0; i < 64; i++) {
+      r = addMod(r, r);
+    }
+    this.rSquared = r;
+  }
+
+  public long getModulus() {
+    return n;
+  }
+
+  /**
+   * @return The Montgomery form of one.
+   */
+  public long one() {
+    return one;
+  }
+
+  /**
+   * Converts a value into Montgomery form.
+   * @param a A non-negative value, not necessarily reduced mod n.
+   * @return a * R mod n
+   */
+  public long toMontgomery(long a) {
+    return multiply(a, rSquared);
+  }
+
+  /**
+   * Converts a value out of Montgomery form.
+   * @param a A value in Montgomery form.
+   * @return a * R^-1 mod n
+   */
+  public long fromMontgomery(long a) {
+    return reduce(0, a);
+  }
+
+  /**
+   * Multiplies two values in Montgomery form.
+   * @param a The first factor in Montgomery form.
+   * @param b The second factor in Montgomery form.
+   * @return a * b * R^-1 mod n
+   */
+  public long multiply(long a, long b) {
+    return reduce(unsignedMultiplyHigh(a, b), a * b);
+  }
+
+  /**
+   * Computes a^x mod n. The base and the result are in normal (not Montgomery) form.
+   * @param a The base, a >= 0
+   * @param x The exponent, x >= 0
+   * @return The value of the modular exponentiation computation
+   */
+  public long pow(long a, long x) {
+    return fromMontgomery(powMontgomery(toMontgomery(a), x));
+  }
+
+  /**
+   * Computes a^x mod n with the base and the result in Montgomery form.
+   * @param a The base in Montgomery form.
+   * @param x The exponent, x >= 0
+   * @return The result in Montgomery form.
+   */
+  public long powMontgomery(long a, long x) {
+    long y = one;
+    for (int i = 63 - Long.numberOfLeadingZeros(x); i >= 0; i--) {
+      y = multiply(y, y);
+      if ((x >>> i & 1) != 0) {
+        y = multiply(a, y);
+      }
+    }
+    return y;
+  }
+
+  /**
+   * Montgomery reduction of the 128-bit value hi:lo.
+   * @return hi:lo * R^-1 mod n
+   */
+  private long reduce(long hi, long lo) {
+    long m = lo * nPrime;
+    //lo + low(m * n) is zero mod 2^64 and only carries when lo is non-zero
+    long t = hi + unsignedMultiplyHigh(m, n) + (lo != 0 ? 1 : 0);
+    if (Long.compareUnsigned(t, n) >= 0) {
+      t -= n;
+    }
+    return t;
+  }
+
+  private long addMod(long a, long b) {
+    long sum = a + b;
+    if (Long.compareUnsigned(sum, n) >= 0) {
+      sum -= n;
+    }
+    return sum;
+  }
+
+  /**
+   * Computes the inverse of an odd number modulo 2^64 with Newton's iteration.
+   * @param a An odd number.
+   * @return a^-1 mod 2^64
+   */
+  protected static long inverseModWord(long a) {
+    //correct to 5 bits; every step doubles the number of correct bits
+    long inv = (3 * a) ^ 2;
+    for (int i = 0; i < 4; i++) {
+      inv *= 2 - a * inv;
+    }
+    return inv;
+  }
+
+  /**
+   * Returns the upper 64 bits of the unsigned 128-bit product of two longs.
+   * @param x The first factor, treated as unsigned.
+   * @param y The second factor, treated as unsigned.
+   * @return The high word of x * y.
+   */
+  protected static long unsignedMultiplyHigh(long x, long y) {
+    long x0 = x & LOW_32_BITS;
+    long x1 = x >>> 32;
+    long y0 = y & LOW_32_BITS;
+    long y1 = y >>> 32;
+    long w0 = x0 * y0;
+    long t = x1 * y0 + (w0 >>> 32);
+    long w1 = (t & LOW_32_BITS) + x0 * y1;
+    return x1 * y1 + (t >>> 32) + (w1 >>> 32);
+  }
+}
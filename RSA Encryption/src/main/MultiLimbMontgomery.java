@@ -0,0 +1,183 @@
+package main;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * Montgomery arithmetic for odd multi-limb moduli. Numbers are stored as little-endian arrays of
+ * 32-bit limbs and multiplied with the coarsely integrated operand scanning (CIOS) method, so the
+ * inner loop of an exponentiation contains no division.
+ */
+public class MultiLimbMontgomery {
+
+  private static final long LOW_32_BITS = 0xFFFFFFFFL;
+
+  private final BigInteger modulus;
+  private final int[] n;
+  private final int numLimbs;
+  //-n^-1 mod 2^32
+  private final int nPrime;
+  //R mod n, the Montgomery form of 1
+  private final int[] one;
+  //R^2 mod n, used to move values into Montgomery form
+  private final int[] rSquared;
+
+  /**
+   * Creates the Montgomery context for the modulus.
+   * @param modulus The modulus. The following needs to apply: modulus is odd and modulus > 1
+   */
+  public MultiLimbMontgomery(BigInteger modulus) {
+    if (modulus.compareTo(BigInteger.ONE) <= 0 || !modulus.testBit(0)) {
+      throw new IllegalArgumentException("The modulus must be odd and greater than one");
+    }
+    this.modulus = modulus;
+    this.numLimbs = (modulus.bitLength() + 31) >>> 5;
+    this.n = toLimbs(modulus, numLimbs);
+    this.nPrime = (int) -Montgomery.inverseModWord(n[0] & LOW_32_BITS);
+    BigInteger r = BigInteger.ONE.shiftLeft(numLimbs << 5);
+    this.one = toLimbs(r.mod(modulus), numLimbs);
+    this.rSquared = toLimbs(r.multiply(r).mod(modulus), numLimbs);
+  }
+
+  public BigInteger getModulus() {
+    return modulus;
+  }
+
+  public int getNumLimbs() {
+    return numLimbs;
+  }
+
+  /**
+   * Computes a^x mod n.
+   * @param a The base, a >= 0
+   * @param x The exponent, x >= 0
+   * @return The value of the modular exponentiation computation
+   */
+  public BigInteger pow(BigInteger a, BigInteger x) {
+    int[] base = toMontgomery(a);
+    int[] y = one.clone();
+    int[] scratch = new int[numLimbs + 2];
+    for (int i = x.bitLength() - 1; i >= 0; i--) {
+      multiply(y, y, y, scratch);
+      if (x.testBit(i)) {
+        multiply(base, y, y, scratch);
+      }
+    }
+    return fromMontgomery(y);
+  }
+
+  /**
+   * Converts a value into Montgomery form.
+   * @param a A non-negative value.
+   * @return The limbs of a * R mod n
+   */
+  public int[] toMontgomery(BigInteger a) {
+    int[] res = toLimbs(a.compareTo(modulus) < 0 ? a : a.mod(modulus), numLimbs);
+    multiply(res, rSquared, res, new int[numLimbs + 2]);
+    return res;
+  }
+
+  /**
+   * Converts a value out of Montgomery form.
+   * @param a The limbs of a value in Montgomery form.
+   * @return a * R^-1 mod n
+   */
+  public BigInteger fromMontgomery(int[] a) {
+    int[] unit = new int[numLimbs];
+    unit[0] = 1;
+    int[] res = new int[numLimbs];
+    multiply(a, unit, res, new int[numLimbs + 2]);
+    return fromLimbs(res);
+  }
+
+  /**
+   * Computes a * b * R^-1 mod n. The result may alias either factor.
+   * @param a The first factor in Montgomery form.
+   * @param b The second factor in Montgomery form.
+   * @param res Array that receives the product, numLimbs long.
+   * @param t Scratch array, numLimbs + 2 long.
+   */
+  public void multiply(int[] a, int[] b, int[] res, int[] t) {
+    int s = numLimbs;
+    Arrays.fill(t, 0);
+    for (int i = 0; i < s; i++) {
+      long bi = b[i] & LOW_32_BITS;
+      long c = 0;
+      for (int j = 0; j < s; j++) {
+        long sum = (t[j] & LOW_32_BITS) + (a[j] & LOW_32_BITS) * bi + c;
+        t[j] = (int) sum;
+        c = sum >>> 32;
+      }
+      long sum = (t[s] & LOW_32_BITS) + c;
+      t[s] = (int) sum;
+      t[s + 1] = (int) (sum >>> 32);
+
+      long m = (t[0] * nPrime) & LOW_32_BITS;
+      sum = (t[0] & LOW_32_BITS) + m * (n[0] & LOW_32_BITS);
+      c = sum >>> 32;
+      for (int j = 1; j < s; j++) {
+        sum = (t[j] & LOW_32_BITS) + m * (n[j] & LOW_32_BITS) + c;
+        t[j - 1] = (int) sum;
+        c = sum >>> 32;
+      }
+      sum = (t[s] & LOW_32_BITS) + c;
+      t[s - 1] = (int) sum;
+      t[s] = t[s + 1] + (int) (sum >>> 32);
+    }
+    if (t[s] != 0 || compare(t, n, s) >= 0) {
+      subtract(t, n, s);
+    }
+    System.arraycopy(t, 0, res, 0, s);
+  }
+
+  private static int compare(int[] a, int[] b, int len) {
+    for (int i = len - 1; i >= 0; i--) {
+      if (a[i] != b[i]) {
+        return Integer.compareUnsigned(a[i], b[i]);
+      }
+    }
+    return 0;
+  }
+
+  private static void subtract(int[] a, int[] b, int len) {
+    long borrow = 0;
+    for (int i = 0; i < len; i++) {
+      long diff = (a[i] & LOW_32_BITS) - (b[i] & LOW_32_BITS) - borrow;
+      a[i] = (int) diff;
+      borrow = (diff >>> 63);
+    }
+  }
+
+  /**
+   * Splits a non-negative number into little-endian 32-bit limbs.
+   * @param a The number, which needs to fit into numLimbs limbs.
+   * @param numLimbs The length of the result.
+   * @return The limbs of a.
+   */
+  protected static int[] toLimbs(BigInteger a, int numLimbs) {
+    int[] limbs = new int[numLimbs];
+    byte[] bytes = a.toByteArray();
+    for (int i = 0; i < bytes.length && (i >>> 2) < numLimbs; i++) {
+      limbs[i >>> 2] |= (bytes[bytes.length - 1 - i] & 0xFF) << ((i & 3) << 3);
+    }
+    return limbs;
+  }
+
+  /**
+   * Joins little-endian 32-bit limbs into a non-negative number.
+   * @param limbs The limbs.
+   * @return The number represented by the limbs.
+   */
+  protected static BigInteger fromLimbs(int[] limbs) {
+    byte[] bytes = new byte[(limbs.length << 2) + 1];
+    for (int i = 0; i < limbs.length; i++) {
+      int limb = limbs[i];
+      int pos = bytes.length - 1 - (i << 2);
+      bytes[pos] = (byte) limb;
+      bytes[pos - 1] = (byte) (limb >>> 8);
+      bytes[pos - 2] = (byte) (limb >>> 16);
+      bytes[pos - 3] = (byte) (limb >>> 24);
+    }
+    return new BigInteger(bytes);
+  }
+}
@@ -0,0 +1,527 @@
+package main;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes reports on a dedicated thread so the threads generating them never wait for the disk.
+ * Generating threads write a report through the Writer returned by {@link #open(int)}, which
+ * encodes the text into pooled direct buffers and puts every full buffer on a bounded queue, so a
+ * report never has to be held in memory as a whole. The writer thread takes the buffers off the
+ * queue and writes the consecutive buffers of one report with a single gathering FileChannel
+ * write. Reports are written either one file per report or,
+ * in packed mode, into a single file whose index is written when the pipeline is closed; there
+ * the buffers of reports written at the same time interleave, and the index lists the parts of
+ * every report. Each report can be compressed with gzip.
+ */
+public class OutputPipeline implements Closeable {
+
+  public static final int DEFAULT_QUEUE_CAPACITY = 256;
+  public static final String PACK_FILE = "output.pack";
+  public static final String INDEX_FILE = "output.idx";
+  private static final int BUFFER_SIZE = 64 * 1024;
+  //the number of idle buffers kept for reuse
+  private static final int MAX_POOLED_BUFFERS = 64;
+  //how often a thread waiting on a full queue checks that the writer thread still runs
+  private static final long ALIVE_CHECK_MILLIS = 100;
+  //the most buffers of one report that are written at once
+  private static final int MAX_GATHERED_BUFFERS = 16;
+
+  private final File directory;
+  private final boolean packed;
+  private final boolean gzip;
+  private final BlockingQueue<Task> queue;
+  private final ConcurrentLinkedQueue<ByteBuffer> bufferPool =
+      new ConcurrentLinkedQueue<ByteBuffer>();
+  //report number -> {offset, length} of each of its parts in the pack file
+  private final Map<Integer, List<long[]>> index = new TreeMap<Integer, List<long[]>>();
+  //the files of the reports being written, in file per report mode
+  private final Map<Integer, FileChannel> openFiles = new HashMap<Integer, FileChannel>();
+  //the tasks written together by the writer thread, and their buffers
+  private final List<Task> group = new ArrayList<Task>(MAX_GATHERED_BUFFERS);
+  private final ByteBuffer[] gathered = new ByteBuffer[MAX_GATHERED_BUFFERS];
+  private final Thread writer;
+  private FileChannel pack;
+  private volatile IOException failure;
+  private boolean closed;
+
+  /**
+   * Creates a pipeline and starts its writer thread.
+   * @param directory The folder the reports are written to.
+   * @param packed True to write every report into one file with an index.
+   * @param gzip True to compress every report with gzip.
+   * @param queueCapacity The number of reports that can wait to be written, queueCapacity > 0
+   */
+  public OutputPipeline(File directory, boolean packed, boolean gzip, int queueCapacity) {
+    if (queueCapacity <= 0) {
+      throw new IllegalArgumentException(
+          "The capacity of the queue must be a positive integer value");
+    }
+    this.directory = directory;
+    this.packed = packed;
+    this.gzip = gzip;
+    this.queue = new ArrayBlockingQueue<Task>(queueCapacity);
+    this.writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        drain();
+      }
+    }, "output-writer");
+    writer.start();
+  }
+
+  /**
+   * Deletes every file in the folder before anything else is written. The files are deleted by
+   * the writer thread.
+   */
+  public void clearDirectory() throws IOException, InterruptedException {
+    enqueue(Task.CLEAR);
+  }
+
+  /**
+   * Queues a report for writing, waiting while the queue is full.
+   * @param number The number of the report; report n is written to outputn.txt.
+   * @param report The text of the report.
+   * @throws IOException If the writer thread has failed.
+   */
+  public void submit(int number, CharSequence report) throws IOException, InterruptedException {
+    Writer out = open(number);
+    try {
+      out.append(report);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Starts a report. The text written to the returned writer is encoded, and compressed in gzip
+   * mode, into pooled buffers; each full buffer is queued for writing, waiting while the queue
+   * is full. The report is complete once the writer is closed. The writer must only be used by
+   * one thread.
+   * @param number The number of the report; report n is written to outputn.txt.
+   * @return The writer of the report.
+   * @throws IOException If the writer thread has failed.
+   */
+  public Writer open(int number) throws IOException {
+    checkFailure();
+    OutputStream sink = new ReportStream(number);
+    if (gzip) {
+      sink = new GZIPOutputStream(sink, BUFFER_SIZE);
+    }
+    return new OutputStreamWriter(sink, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Waits until every queued report is written, writes the index in packed mode and stops the
+   * writer thread.
+   * @throws IOException If writing any report failed.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    boolean interrupted = false;
+    while (true) {
+      try {
+        //a writer thread that has stopped no longer takes anything off the queue
+        while (writer.isAlive() && !queue.offer(Task.END, ALIVE_CHECK_MILLIS,
+            TimeUnit.MILLISECONDS)) {
+          //check again
+        }
+        writer.join();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    checkFailure();
+  }
+
+  /**
+   * Reads one report back from a folder written in packed mode.
+   * @param directory The folder that holds the pack and index files.
+   * @param number The number of the report.
+   * @return The text of the report, or null if the pack has no report with that number.
+   */
+  public static String readPacked(File directory, int number) throws IOException {
+    DataInputStream in = new DataInputStream(
+        Files.newInputStream(new File(directory, INDEX_FILE).toPath()));
+    boolean compressed;
+    List<long[]> parts = new ArrayList<long[]>();
+    int length = 0;
+    try {
+      compressed = in.readBoolean();
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        int entryNumber = in.readInt();
+        long entryOffset = in.readLong();
+        int entryLength = in.readInt();
+        if (entryNumber == number) {
+          parts.add(new long[] { entryOffset, entryLength });
+          length += entryLength;
+        }
+      }
+    } finally {
+      in.close();
+    }
+    if (parts.isEmpty()) {
+      return null;
+    }
+    FileChannel channel = FileChannel.open(new File(directory, PACK_FILE).toPath());
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    try {
+      for (long[] part : parts) {
+        long end = buffer.position() + part[1];
+        long offset = part[0] - buffer.position();
+        buffer.limit((int) end);
+        while (buffer.hasRemaining()) {
+          if (channel.read(buffer, offset + buffer.position()) < 0) {
+            throw new IOException("The pack file ends before report " + number);
+          }
+        }
+      }
+    } finally {
+      channel.close();
+    }
+    byte[] bytes = buffer.array();
+    if (compressed) {
+      InputStream gzipIn = new GZIPInputStream(new ByteArrayInputStream(bytes));
+      ByteArrayOutputStream out = new ByteArrayOutputStream(length * 4);
+      byte[] chunk = new byte[4096];
+      int read;
+      while ((read = gzipIn.read(chunk)) != -1) {
+        out.write(chunk, 0, read);
+      }
+      bytes = out.toByteArray();
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Puts a task on the queue, waiting while it is full as long as the writer thread runs.
+   * @throws IOException If the writer thread has failed or stopped.
+   */
+  private void enqueue(Task task) throws IOException, InterruptedException {
+    while (!queue.offer(task, ALIVE_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+      checkFailure();
+      if (!writer.isAlive()) {
+        throw new IOException("The writer thread has stopped");
+      }
+    }
+  }
+
+  private void checkFailure() throws IOException {
+    IOException e = failure;
+    if (e != null) {
+      throw new IOException("Writing the output failed", e);
+    }
+  }
+
+  private ByteBuffer acquire() {
+    ByteBuffer buffer = bufferPool.poll();
+    if (buffer == null) {
+      return ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+    buffer.clear();
+    return buffer;
+  }
+
+  private void release(ByteBuffer buffer) {
+    //the size check is racy, which only means the pool may end up slightly larger
+    if (bufferPool.size() < MAX_POOLED_BUFFERS) {
+      bufferPool.offer(buffer);
+    }
+  }
+
+  /**
+   * The loop of the writer thread. After a failure the remaining reports are discarded so the
+   * generating threads do not block on a full queue.
+   */
+  private void drain() {
+    try {
+      while (true) {
+        Task task = queue.take();
+        if (task == Task.END) {
+          break;
+        }
+        gather(task);
+        try {
+          if (failure == null) {
+            write();
+          }
+        } catch (IOException e) {
+          failure = e;
+        } catch (RuntimeException e) {
+          failure = new IOException("Writing report " + task.number + " failed", e);
+        } finally {
+          for (Task written : group) {
+            if (written.buffer != null) {
+              release(written.buffer);
+            }
+          }
+        }
+      }
+      if (failure == null && packed) {
+        finishPack();
+      }
+    } catch (IOException e) {
+      failure = e;
+    } catch (RuntimeException e) {
+      failure = new IOException("Writing the index failed", e);
+    } catch (InterruptedException e) {
+      failure = new IOException("The writer thread was interrupted", e);
+    } finally {
+      //files of reports whose writers were never closed
+      for (FileChannel channel : openFiles.values()) {
+        closeQuietly(channel);
+      }
+      if (pack != null) {
+        closeQuietly(pack);
+      }
+    }
+  }
+
+  private void closeQuietly(FileChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      if (failure == null) {
+        failure = e;
+      }
+    }
+  }
+
+  /**
+   * Collects a task and the parts of the same report queued right behind it into group.
+   * @param task The task taken from the queue.
+   */
+  private void gather(Task task) {
+    group.clear();
+    group.add(task);
+    while (task.buffer != null && !task.last && group.size() < MAX_GATHERED_BUFFERS) {
+      Task next = queue.peek();
+      if (next == null || next.buffer == null || next.number != task.number) {
+        break;
+      }
+      //the writer thread is the only consumer, so this is the task just peeked at
+      task = queue.poll();
+      group.add(task);
+    }
+  }
+
+  /**
+   * Writes the tasks of group: the clear marker or consecutive parts of one report.
+   */
+  private void write() throws IOException {
+    Task task = group.get(0);
+    if (task == Task.CLEAR) {
+      DirectoryStream<Path> files = Files.newDirectoryStream(directory.toPath());
+      try {
+        for (Path file : files) {
+          if (Files.isRegularFile(file)) {
+            Files.delete(file);
+          }
+        }
+      } finally {
+        files.close();
+      }
+      return;
+    }
+    if (packed) {
+      if (pack == null) {
+        pack = create(PACK_FILE);
+      }
+      List<long[]> parts = index.get(task.number);
+      if (parts == null) {
+        parts = new ArrayList<long[]>(1);
+        index.put(task.number, parts);
+      }
+      long length = gatherBuffers();
+      if (length > 0 || parts.isEmpty()) {
+        long offset = pack.position();
+        writeFully(pack, length);
+        parts.add(new long[] { offset, length });
+      }
+      return;
+    }
+    FileChannel channel = openFiles.get(task.number);
+    if (channel == null) {
+      channel = create("output" + task.number + (gzip ? ".txt.gz" : ".txt"));
+      openFiles.put(task.number, channel);
+    }
+    boolean last = group.get(group.size() - 1).last;
+    try {
+      writeFully(channel, gatherBuffers());
+    } finally {
+      if (last) {
+        openFiles.remove(task.number);
+        channel.close();
+      }
+    }
+  }
+
+  private FileChannel create(String name) throws IOException {
+    return FileChannel.open(new File(directory, name).toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+  }
+
+  /**
+   * Puts the buffers of group into gathered.
+   * @return The number of bytes in the buffers.
+   */
+  private long gatherBuffers() {
+    long length = 0;
+    for (int i = 0; i < group.size(); i++) {
+      gathered[i] = group.get(i).buffer;
+      length += gathered[i].remaining();
+    }
+    return length;
+  }
+
+  private void writeFully(FileChannel channel, long length) throws IOException {
+    while (length > 0) {
+      length -= channel.write(gathered, 0, group.size());
+    }
+    Arrays.fill(gathered, null);
+  }
+
+  /**
+   * Writes the index of the pack file: whether the reports are compressed, the number of parts
+   * and then the report number, offset and length of every part, by increasing report number and
+   * the parts of a report in order.
+   */
+  private void finishPack() throws IOException {
+    if (pack == null) {
+      pack = create(PACK_FILE);
+    }
+    pack.force(false);
+    FileChannel indexChannel = create(INDEX_FILE);
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Channels.newOutputStream(indexChannel)));
+    try {
+      int numParts = 0;
+      for (List<long[]> parts : index.values()) {
+        numParts += parts.size();
+      }
+      out.writeBoolean(gzip);
+      out.writeInt(numParts);
+      for (Map.Entry<Integer, List<long[]>> entry : index.entrySet()) {
+        for (long[] part : entry.getValue()) {
+          out.writeInt(entry.getKey());
+          out.writeLong(part[0]);
+          out.writeInt((int) part[1]);
+        }
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Fills pooled buffers with the bytes of one report and queues each buffer once it is full.
+   * Closing the stream queues the last buffer, marked as the end of the report.
+   */
+  private class ReportStream extends OutputStream {
+    private final int number;
+    private ByteBuffer buffer = acquire();
+
+    ReportStream(int number) {
+      this.number = number;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (!buffer.hasRemaining()) {
+        queue(false);
+      }
+      buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      while (length > 0) {
+        if (!buffer.hasRemaining()) {
+          queue(false);
+        }
+        int count = Math.min(length, buffer.remaining());
+        buffer.put(bytes, offset, count);
+        offset += count;
+        length -= count;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (buffer != null) {
+        queue(true);
+      }
+    }
+
+    private void queue(boolean last) throws IOException {
+      checkFailure();
+      buffer.flip();
+      try {
+        enqueue(new Task(number, buffer, last));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while queueing report " + number);
+      }
+      buffer = last ? null : acquire();
+    }
+  }
+
+  /**
+   * A part of a report waiting to be written, or one of the markers.
+   */
+  private static class Task {
+    static final Task CLEAR = new Task(0, null, false);
+    static final Task END = new Task(0, null, false);
+
+    final int number;
+    final ByteBuffer buffer;
+    //true for the last part of the report
+    final boolean last;
+
+    Task(int number, ByteBuffer buffer, boolean last) {
+      this.number = number;
+      this.buffer = buffer;
+      this.last = last;
+    }
+  }
+}
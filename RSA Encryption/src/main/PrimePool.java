@@ -0,0 +1,188 @@
+package main;
+
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A pool of tested primes that background workers fill ahead of demand. Primes are kept in one
+ * bounded queue per size in bits; a size is added the first time a prime of that size is asked
+ * for. Workers always refill the emptiest queue and sleep while every queue is full.
+ */
+public class PrimePool {
+
+  private final int capacityPerSize;
+  private final Map<Integer, BlockingQueue<BigInteger>> queues =
+      new ConcurrentHashMap<Integer, BlockingQueue<BigInteger>>();
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notFull = lock.newCondition();
+  private final Thread[] workers;
+  private final long startTime = System.nanoTime();
+  private final LongAdder produced = new LongAdder();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private volatile boolean running = true;
+
+  /**
+   * Creates a pool and starts its workers.
+   * @param capacityPerSize The maximum number of primes kept for each size, capacityPerSize > 0
+   * @param numWorkers The number of background threads, numWorkers > 0
+   * @param randGen Source of the seeds for the workers' random number generators.
+   */
+  public PrimePool(int capacityPerSize, int numWorkers, Random randGen) {
+    if (capacityPerSize <= 0 || numWorkers <= 0) {
+      throw new IllegalArgumentException(
+          "The capacity and the number of workers must be positive integer values");
+    }
+    this.capacityPerSize = capacityPerSize;
+    this.workers = new Thread[numWorkers];
+    for (int i = 0; i < numWorkers; i++) {
+      final RSAKeyGenerator source =
+          new RSAKeyGenerator(RSAKeyGenerator.MIN_MODULUS_BITS, new Random(randGen.nextLong()));
+      workers[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          fill(source);
+        }
+      }, "prime-pool-" + i);
+      workers[i].setDaemon(true);
+      workers[i].start();
+    }
+  }
+
+  /**
+   * Takes a prime from the pool without waiting. Registers the size with the workers if it has
+   * not been asked for before.
+   * @param bits The size of the prime in bits.
+   * @return A tested prime of the given size, or null if none is ready.
+   */
+  public BigInteger poll(int bits) {
+    BigInteger p = getQueue(bits).poll();
+    if (p == null) {
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    lock.lock();
+    try {
+      notFull.signal();
+    } finally {
+      lock.unlock();
+    }
+    return p;
+  }
+
+  /**
+   * @param bits The size of the prime in bits.
+   * @return The fraction of the queue for the size that is filled, between 0 and 1.
+   */
+  public double getFillLevel(int bits) {
+    BlockingQueue<BigInteger> queue = queues.get(bits);
+    return queue == null ? 0 : (double) queue.size() / capacityPerSize;
+  }
+
+  /**
+   * @return The number of primes the workers have added to the pool.
+   */
+  public long getProduced() {
+    return produced.sum();
+  }
+
+  /**
+   * @return The number of polls that were served from the pool.
+   */
+  public long getHits() {
+    return hits.sum();
+  }
+
+  /**
+   * @return The number of polls that found the pool empty.
+   */
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  /**
+   * @return The average number of primes added per second since the pool was created.
+   */
+  public double getRefillRate() {
+    double seconds = (System.nanoTime() - startTime) / 1e9;
+    return seconds > 0 ? produced.sum() / seconds : 0;
+  }
+
+  /**
+   * Stops the workers. Primes already in the pool can still be taken.
+   */
+  public void shutdown() {
+    running = false;
+    for (Thread worker : workers) {
+      worker.interrupt();
+    }
+  }
+
+  private BlockingQueue<BigInteger> getQueue(int bits) {
+    BlockingQueue<BigInteger> queue = queues.get(bits);
+    if (queue == null) {
+      lock.lock();
+      try {
+        queue = queues.get(bits);
+        if (queue == null) {
+          queue = new ArrayBlockingQueue<BigInteger>(capacityPerSize);
+          queues.put(bits, queue);
+          notFull.signalAll();
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+    return queue;
+  }
+
+  private void fill(RSAKeyGenerator source) {
+    try {
+      while (running) {
+        int bits = awaitSizeToFill();
+        BigInteger p = source.getTestedPrime(bits);
+        //another worker may have filled the queue in the meantime
+        if (queues.get(bits).offer(p)) {
+          produced.increment();
+        }
+      }
+    } catch (InterruptedException e) {
+      //shutdown
+    }
+  }
+
+  /**
+   * Waits until some queue has room and picks the emptiest one.
+   * @return The size in bits whose queue is to be refilled.
+   */
+  private int awaitSizeToFill() throws InterruptedException {
+    lock.lock();
+    try {
+      while (true) {
+        int bits = -1;
+        int lowest = capacityPerSize;
+        for (Map.Entry<Integer, BlockingQueue<BigInteger>> entry : queues.entrySet()) {
+          int size = entry.getValue().size();
+          if (size < lowest) {
+            lowest = size;
+            bits = entry.getKey();
+          }
+        }
+        if (bits != -1) {
+          return bits;
+        }
+        notFull.await();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package main;
+
+import java.math.BigInteger;
+import java.util.BitSet;
+
+/**
+ * Incremental prime search with a sieve of small primes. Starting from one odd number, a window
+ * of consecutive odd candidates is sieved by every small prime, which only costs one remainder
+ * per small prime for the whole window. Only the candidates that survive the sieve are handed to
+ * the probabilistic primality test.
+ */
+public class PrimeSieve {
+
+  public static final int DEFAULT_WINDOW = 2048;
+  private static final int SMALL_PRIME_LIMIT = 1 << 14;
+  //odd primes below SMALL_PRIME_LIMIT
+  private static final int[] SMALL_PRIMES = findSmallPrimes(SMALL_PRIME_LIMIT);
+
+  private PrimeSieve() {
+  }
+
+  /**
+   * Finds the first probable prime among the odd candidates start, start + 2, ...,
+   * start + 2 * (window - 1).
+   * @param start The first candidate. The following needs to apply: start is odd and
+   *        start > SMALL_PRIME_LIMIT
+   * @param window The number of odd candidates to search.
+   * @param certainty The certainty passed to BigInteger.isProbablePrime.
+   * @return The first probable prime in the window, or null if there is none.
+   */
+  public static BigInteger search(BigInteger start, int window, int certainty) {
+    return search(start, window, certainty, 0);
+  }
+
+  /**
+   * Finds the first probable prime p among the odd candidates start, start + 2, ...,
+   * start + 2 * (window - 1) for which p - 1 is not divisible by the given odd prime. Those
+   * candidates are removed by the sieve, so they are never tested.
+   * @param start The first candidate. The following needs to apply: start is odd and
+   *        start > SMALL_PRIME_LIMIT
+   * @param window The number of odd candidates to search.
+   * @param certainty The certainty passed to BigInteger.isProbablePrime.
+   * @param excludedModulus An odd prime e; candidates with p = 1 mod e are skipped. Zero skips
+   *        nothing.
+   * @return The first such probable prime in the window, or null if there is none.
+   */
+  public static BigInteger search(BigInteger start, int window, int certainty,
+      int excludedModulus) {
+    BitSet composites = sieve(start, window);
+    if (excludedModulus != 0) {
+      mark(composites, start, window, excludedModulus, 1);
+    }
+    int tested = 0;
+    for (int i = composites.nextClearBit(0); i < window; i = composites.nextClearBit(i + 1)) {
+      BigInteger candidate = start.add(BigInteger.valueOf(2L * i));
+      Metrics.candidateDrawn();
+      if (MillerRabin.isProbablePrime(candidate, certainty)) {
+        //every candidate before i was either tested or removed by the sieve
+        Metrics.candidatesSieved(i - tested);
+        return candidate;
+      }
+      Metrics.candidateRejected();
+      tested++;
+    }
+    Metrics.candidatesSieved(window - tested);
+    return null;
+  }
+
+  /**
+   * Marks every odd candidate in the window that has a small prime factor.
+   * @param start The first candidate. The following needs to apply: start is odd and
+   *        start > SMALL_PRIME_LIMIT
+   * @param window The number of odd candidates to sieve.
+   * @return A set in which bit i is set iff start + 2 * i is known to be composite.
+   */
+  protected static BitSet sieve(BigInteger start, int window) {
+    if (!start.testBit(0) || start.compareTo(BigInteger.valueOf(SMALL_PRIME_LIMIT)) <= 0) {
+      throw new IllegalArgumentException(
+          "The start of the window must be odd and greater than " + SMALL_PRIME_LIMIT);
+    }
+    BitSet composites = new BitSet(window);
+    for (int p : SMALL_PRIMES) {
+      mark(composites, start, window, p, 0);
+    }
+    return composites;
+  }
+
+  /**
+   * Marks every odd candidate in the window that has the given residue.
+   * @param marked The set in which bit i stands for start + 2 * i
+   * @param start The first candidate.
+   * @param window The number of odd candidates.
+   * @param m An odd modulus.
+   * @param residue The residue of the candidates to mark, 0 <= residue < m
+   */
+  private static void mark(BitSet marked, BigInteger start, int window, int m, int residue) {
+    int r = start.mod(BigInteger.valueOf(m)).intValue();
+    //start + 2i = residue mod m  <=>  i = (residue - r) * 2^-1 mod m, and 2^-1 = (m + 1) / 2
+    //for odd m
+    int first = (int) ((long) ((residue - r + m) % m) * ((m + 1) >>> 1) % m);
+    for (int i = first; i < window; i += m) {
+      marked.set(i);
+    }
+  }
+
+  /**
+   * Sieve of Eratosthenes.
+   * @param limit Upper bound (exclusive).
+   * @return The odd primes below limit.
+   */
+  private static int[] findSmallPrimes(int limit) {
+    boolean[] composite = new boolean[limit];
+    int count = 0;
+    int[] primes = new int[limit];
+    for (int i = 3; i < limit; i += 2) {
+      if (!composite[i]) {
+        primes[count++] = i;
+        for (long j = (long) i * i; j < limit; j += 2 * i) {
+          composite[(int) j] = true;
+        }
+      }
+    }
+    int[] res = new int[count];
+    System.arraycopy(primes, 0, res, 0, count);
+    return res;
+  }
+}
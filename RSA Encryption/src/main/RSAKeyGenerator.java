@@ -0,0 +1,232 @@
+package main;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+/**
+ * Generates RSA key pairs of an arbitrary modulus size using BigInteger arithmetic. Instances
+ * hold no state besides their configuration, so one generator can be reused for any number of
+ * keys.
+ */
+public class RSAKeyGenerator {
+
+  public static final int MIN_MODULUS_BITS = 1024;
+  public static final int MAX_MODULUS_BITS = 4096;
+  private static final int NUM_PRIMALITY_TESTS = 20;
+  private static final BigInteger TWO = BigInteger.valueOf(2);
+  private static final BigInteger THREE = BigInteger.valueOf(3);
+  //the usual fixed public exponent, 2^16 + 1
+  public static final BigInteger F4 = BigInteger.valueOf(65537);
+
+  private final int modulusBits;
+  private final int numPrimes;
+  private final Random randGen;
+  private boolean sievedSearch = true;
+  private PrimePool primePool;
+  private BigInteger publicExponent;
+
+  /**
+   * Creates a generator for two-prime keys with the given modulus size.
+   * @param modulusBits Size of the modulus in bits, between {@link #MIN_MODULUS_BITS} and
+   *        {@link #MAX_MODULUS_BITS} (inclusive).
+   * @param randGen Source of randomness for the prime candidates.
+   */
+  public RSAKeyGenerator(int modulusBits, Random randGen) {
+    this(modulusBits, 2, randGen);
+  }
+
+  /**
+   * Creates a generator for multi-prime keys with the given modulus size.
+   * @param modulusBits Size of the modulus in bits, between {@link #MIN_MODULUS_BITS} and
+   *        {@link #MAX_MODULUS_BITS} (inclusive).
+   * @param numPrimes The number of prime factors of the modulus, at least two.
+   * @param randGen Source of randomness for the prime candidates.
+   */
+  public RSAKeyGenerator(int modulusBits, int numPrimes, Random randGen) {
+    if (modulusBits < MIN_MODULUS_BITS || modulusBits > MAX_MODULUS_BITS) {
+      throw new IllegalArgumentException(String.format(
+          "The modulus size must be between %d and %d bits", MIN_MODULUS_BITS, MAX_MODULUS_BITS));
+    }
+    if (numPrimes < 2) {
+      throw new IllegalArgumentException("The number of primes must be at least two");
+    }
+    this.modulusBits = modulusBits;
+    this.numPrimes = numPrimes;
+    this.randGen = randGen;
+  }
+
+  public int getModulusBits() {
+    return modulusBits;
+  }
+
+  public int getNumPrimes() {
+    return numPrimes;
+  }
+
+  /**
+   * Selects how primes are searched for.
+   * @param sieved True to sieve a window of odd candidates after one random starting point,
+   *        false to test fresh random candidates one at a time.
+   */
+  public void setSievedSearch(boolean sieved) {
+    this.sievedSearch = sieved;
+  }
+
+  /**
+   * Makes the generator take its primes from a pool, falling back to an inline search whenever
+   * the pool has none of the needed size.
+   * @param pool The pool, or null to always search inline.
+   */
+  public void setPrimePool(PrimePool pool) {
+    this.primePool = pool;
+  }
+
+  /**
+   * Fixes the public exponent of the generated keys. Primes p with p = 1 mod e are rejected while
+   * searching, so e is invertible for every pair of primes and d is computed once per key.
+   * @param e An odd prime such as {@link #F4}, or null to search for the smallest odd e that is
+   *        invertible.
+   */
+  public void setPublicExponent(BigInteger e) {
+    if (e != null && (e.compareTo(THREE) < 0 || !e.isProbablePrime(NUM_PRIMALITY_TESTS))) {
+      throw new IllegalArgumentException("The public exponent must be an odd prime");
+    }
+    this.publicExponent = e;
+  }
+
+  /**
+   * @return The fixed public exponent, or null if it is searched for.
+   */
+  public BigInteger getPublicExponent() {
+    return publicExponent;
+  }
+
+  /**
+   * Generates a new key pair. Calls findKeyPair() until a valid set is obtained.
+   * @return A key pair whose modulus is exactly getModulusBits() bits long.
+   */
+  public RSAKeyPair generate() {
+    long start = Metrics.startTimer();
+    RSAKeyPair pair = findKeyPair();
+    while (pair == null) {
+      Metrics.keyRetry();
+      pair = findKeyPair();
+    }
+    Metrics.keyGenerated(start);
+    return pair;
+  }
+
+  /**
+   * Finds distinct primes and computes n, e and d. The CRT parameters of the private key are
+   * computed along with the pair.
+   * @return The key pair, or null if the primes need to be replaced.
+   */
+  protected RSAKeyPair findKeyPair() {
+    BigInteger[] primes = new BigInteger[numPrimes];
+    BigInteger n = BigInteger.ONE;
+    BigInteger phiOfN = BigInteger.ONE;
+    int remainingBits = modulusBits;
+    for (int i = 0; i < numPrimes; i++) {
+      int bits = (remainingBits + numPrimes - i - 1) / (numPrimes - i);
+      remainingBits -= bits;
+      BigInteger r;
+      do {
+        r = getTestedPrime(bits);
+      } while (contains(primes, i, r));
+      primes[i] = r;
+      n = n.multiply(r);
+      phiOfN = phiOfN.multiply(r.subtract(BigInteger.ONE));
+    }
+    //with more than two primes the product can come out one bit short
+    if (n.bitLength() != modulusBits) {
+      return null;
+    }
+    if (publicExponent != null) {
+      //every prime was chosen with p != 1 mod e, so e is invertible
+      Metrics.exponentTried();
+      return new RSAKeyPair(primes, n, publicExponent,
+          ModularInverse.inverse(publicExponent, phiOfN));
+    }
+    BigInteger e = THREE;
+    Metrics.exponentTried();
+    while (e.compareTo(phiOfN) < 0 && !e.gcd(phiOfN).equals(BigInteger.ONE)) {
+      e = e.add(TWO);
+      Metrics.exponentTried();
+    }
+    //need to restart with different primes
+    if (e.compareTo(phiOfN) >= 0) {
+      return null;
+    }
+    BigInteger d = ModularInverse.inverse(e, phiOfN);
+    return new RSAKeyPair(primes, n, e, d);
+  }
+
+  private static boolean contains(BigInteger[] values, int length, BigInteger value) {
+    for (int i = 0; i < length; i++) {
+      if (values[i].equals(value)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Finds a prime of the given size, taking it from the prime pool if one is set. In sieved mode,
+   * candidates following one random starting point are sieved with small primes and only the
+   * survivors are tested; otherwise fresh random candidates are drawn until one passes the
+   * primality test.
+   * @param bits The size of the prime in bits.
+   * @return A number that is prime with a statistically significant confidence.
+   */
+  protected BigInteger getTestedPrime(int bits) {
+    BigInteger p;
+    if (primePool != null) {
+      p = primePool.poll(bits);
+      //the pool does not know the public exponent, so an unsuitable prime is dropped
+      if (p != null && isSuitablePrime(p)) {
+        return p;
+      }
+    }
+    if (sievedSearch) {
+      int excludedModulus = publicExponent != null && publicExponent.bitLength() < 32
+          ? publicExponent.intValue() : 0;
+      do {
+        p = PrimeSieve.search(getCandidatePrime(bits), PrimeSieve.DEFAULT_WINDOW,
+            NUM_PRIMALITY_TESTS, excludedModulus);
+      //a window running past the top of the range starts over from a new random point
+      } while (p == null || p.bitLength() != bits || !isSuitablePrime(p));
+      return p;
+    }
+    while (true) {
+      p = getCandidatePrime(bits);
+      if (!isSuitablePrime(p)) {
+        continue;
+      }
+      Metrics.candidateDrawn();
+      if (MillerRabin.isProbablePrime(p, NUM_PRIMALITY_TESTS)) {
+        return p;
+      }
+      Metrics.candidateRejected();
+    }
+  }
+
+  /**
+   * @param p A prime or candidate prime.
+   * @return True if the fixed public exponent, if any, is invertible modulo p - 1.
+   */
+  private boolean isSuitablePrime(BigInteger p) {
+    return publicExponent == null || !p.mod(publicExponent).equals(BigInteger.ONE);
+  }
+
+  /**
+   * Generates a possible prime number by using random bits. The two most significant bits are
+   * set so that the product of two such numbers has exactly twice as many bits, and the least
+   * significant bit is set so that the candidate is odd.
+   * @param bits The size of the candidate in bits.
+   * @return A possibly prime number.
+   */
+  protected BigInteger getCandidatePrime(int bits) {
+    BigInteger candidate = new BigInteger(bits, randGen);
+    return candidate.setBit(bits - 1).setBit(bits - 2).setBit(0);
+  }
+}
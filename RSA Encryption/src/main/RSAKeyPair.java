@@ -0,0 +1,125 @@
+package main;
+
+import java.math.BigInteger;
+
+/**
+ * An immutable RSA key pair. Holds the primes used to build the modulus together with the
+ * public and private exponents, and the CRT form of the private key that is precomputed when the
+ * pair is created.
+ */
+public class RSAKeyPair {
+
+  private final BigInteger[] primes;
+  private final BigInteger n;
+  private final BigInteger e;
+  private final BigInteger d;
+  private final RSAPrivateCrtKey crtKey;
+
+  /**
+   * Creates a key pair. No checks for invalid inputs.
+   * @param p The first prime
+   * @param q The second prime
+   * @param n The modulus, n = p * q
+   * @param e The public exponent
+   * @param d The private exponent, d = e^-1 mod phi(n)
+   */
+  public RSAKeyPair(BigInteger p, BigInteger q, BigInteger n, BigInteger e, BigInteger d) {
+    this(new BigInteger[] { p, q }, n, e, d);
+  }
+
+  /**
+   * Creates a multi-prime key pair. No checks for invalid inputs.
+   * @param primes The distinct prime factors of the modulus, at least two.
+   * @param n The modulus, the product of the primes
+   * @param e The public exponent
+   * @param d The private exponent, d = e^-1 mod phi(n)
+   */
+  public RSAKeyPair(BigInteger[] primes, BigInteger n, BigInteger e, BigInteger d) {
+    this.primes = primes.clone();
+    this.n = n;
+    this.e = e;
+    this.d = d;
+    this.crtKey = new RSAPrivateCrtKey(primes, d);
+  }
+
+  /**
+   * Creates a key pair around a private key in CRT form, without computing its parameters
+   * again. No checks for invalid inputs.
+   * @param n The modulus, the product of the primes of the key.
+   * @param e The public exponent
+   * @param crtKey The private key.
+   */
+  public RSAKeyPair(BigInteger n, BigInteger e, RSAPrivateCrtKey crtKey) {
+    this.primes = crtKey.getPrimes();
+    this.n = n;
+    this.e = e;
+    this.d = crtKey.getD();
+    this.crtKey = crtKey;
+  }
+
+  /**
+   * Wraps the int array produced by {@link RSASystem#getPrimesAndKeyPairs(RunContext, boolean)}.
+   * @param pairs Array containing values in the following order {p, q, n, e, d}.
+   * @return The equivalent key pair.
+   */
+  public static RSAKeyPair fromIntArray(int[] pairs) {
+    return new RSAKeyPair(BigInteger.valueOf(pairs[0]), BigInteger.valueOf(pairs[1]),
+        BigInteger.valueOf(pairs[2]), BigInteger.valueOf(pairs[3]), BigInteger.valueOf(pairs[4]));
+  }
+
+  public BigInteger getP() {
+    return primes[0];
+  }
+
+  public BigInteger getQ() {
+    return primes[1];
+  }
+
+  /**
+   * @return A copy of the prime factors of the modulus.
+   */
+  public BigInteger[] getPrimes() {
+    return primes.clone();
+  }
+
+  /**
+   * @return The private key in CRT form.
+   */
+  public RSAPrivateCrtKey getPrivateCrtKey() {
+    return crtKey;
+  }
+
+  public BigInteger getN() {
+    return n;
+  }
+
+  public BigInteger getE() {
+    return e;
+  }
+
+  public BigInteger getD() {
+    return d;
+  }
+
+  /**
+   * @return The number of bits in the modulus.
+   */
+  public int getModulusBits() {
+    return n.bitLength();
+  }
+
+  /**
+   * Converts the key pair back to the int array layout used by the small key path.
+   * @return Array containing values in the following order {p, q, n, e, d}.
+   * @throws ArithmeticException if any value does not fit into an int.
+   */
+  public int[] toIntArray() {
+    return new int[] { getP().intValueExact(), getQ().intValueExact(), n.intValueExact(),
+        e.intValueExact(), d.intValueExact() };
+  }
+
+  @Override
+  public String toString() {
+    return String.format("p = %d, q = %d, n = %d, e = %d, d = %d", getP(), getQ(), n, e, d);
+  }
+}
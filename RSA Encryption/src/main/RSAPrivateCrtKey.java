@@ -0,0 +1,238 @@
+package main;
+
+import java.math.BigInteger;
+
+/**
+ * An RSA private key in Chinese Remainder Theorem (CRT) form. Instead of one exponentiation
+ * modulo n, the private-key operation does one exponentiation modulo every prime factor of n
+ * with the reduced exponent d mod (r - 1) and recombines the results with Garner's formula.
+ * Keys with more than two primes follow the multi-prime layout of PKCS #1: the first two primes
+ * are p and q with qInv = q^-1 mod p, and every further prime r_i has the coefficient
+ * t_i = (r_1 * ... * r_(i-1))^-1 mod r_i.
+ * For word-size primes the recoded exponents and Montgomery contexts are computed once, when the
+ * key is created; larger primes use BigInteger.modPow, which already works in Montgomery form.
+ */
+public class RSAPrivateCrtKey {
+
+  //largest sizes for which the two-prime recombination fits into a long
+  private static final int MAX_WORD_PRIME_BITS = 31;
+  private static final int MAX_WORD_MODULUS_BITS = 62;
+
+  private final BigInteger n;
+  private final BigInteger d;
+  private final BigInteger[] primes;
+  //d mod (r_i - 1)
+  private final BigInteger[] exponents;
+  //qInv at index 0, t_i at index i >= 2, unused at index 1
+  private final BigInteger[] coefficients;
+  private final SlidingWindowExponent[] recodedExponents;
+  private final Montgomery[] wordContexts;
+  private final boolean wordSized;
+
+  /**
+   * Creates the CRT form of a private key. No checks for invalid inputs.
+   * @param primes The distinct prime factors of the modulus, at least two.
+   * @param d The private exponent.
+   */
+  public RSAPrivateCrtKey(BigInteger[] primes, BigInteger d) {
+    if (primes.length < 2) {
+      throw new IllegalArgumentException("A CRT key needs at least two primes");
+    }
+    this.primes = primes.clone();
+    this.d = d;
+    int k = primes.length;
+    this.exponents = new BigInteger[k];
+    this.coefficients = new BigInteger[k];
+    this.recodedExponents = new SlidingWindowExponent[k];
+    this.wordContexts = new Montgomery[k];
+    BigInteger product = primes[0];
+    for (int i = 0; i < k; i++) {
+      BigInteger r = primes[i];
+      exponents[i] = d.mod(r.subtract(BigInteger.ONE));
+      if (r.bitLength() < Long.SIZE) {
+        recodedExponents[i] = SlidingWindowExponent.recode(exponents[i]);
+        wordContexts[i] = new Montgomery(r.longValue());
+      }
+      if (i >= 1) {
+        product = product.multiply(r);
+      }
+      if (i >= 2) {
+        coefficients[i] = ModularInverse.inverse(product.divide(r), r);
+      }
+    }
+    this.coefficients[0] = ModularInverse.inverse(primes[1], primes[0]);
+    this.n = product;
+    this.wordSized = k == 2 && primes[0].bitLength() <= MAX_WORD_PRIME_BITS
+        && n.bitLength() <= MAX_WORD_MODULUS_BITS;
+  }
+
+  /**
+   * Creates the CRT form of a two-prime key from parameters that were computed before, for
+   * example when the key was stored. No checks for invalid inputs.
+   * @param p The first prime.
+   * @param q The second prime.
+   * @param d The private exponent.
+   * @param dp d mod (p - 1)
+   * @param dq d mod (q - 1)
+   * @param qInv q^-1 mod p
+   */
+  public RSAPrivateCrtKey(BigInteger p, BigInteger q, BigInteger d, BigInteger dp, BigInteger dq,
+      BigInteger qInv) {
+    this.primes = new BigInteger[] { p, q };
+    this.d = d;
+    this.exponents = new BigInteger[] { dp, dq };
+    this.coefficients = new BigInteger[] { qInv, null };
+    this.recodedExponents = new SlidingWindowExponent[2];
+    this.wordContexts = new Montgomery[2];
+    for (int i = 0; i < 2; i++) {
+      if (primes[i].bitLength() < Long.SIZE) {
+        recodedExponents[i] = SlidingWindowExponent.recode(exponents[i]);
+        wordContexts[i] = new Montgomery(primes[i].longValue());
+      }
+    }
+    this.n = p.multiply(q);
+    this.wordSized = p.bitLength() <= MAX_WORD_PRIME_BITS
+        && n.bitLength() <= MAX_WORD_MODULUS_BITS;
+  }
+
+  /**
+   * Creates the CRT form of a key from the int array used by the small key path.
+   * @param pairs Array containing values in the following order {p, q, n, e, d}.
+   * @return The private key.
+   */
+  public static RSAPrivateCrtKey fromIntArray(int[] pairs) {
+    return new RSAPrivateCrtKey(
+        new BigInteger[] { BigInteger.valueOf(pairs[0]), BigInteger.valueOf(pairs[1]) },
+        BigInteger.valueOf(pairs[4]));
+  }
+
+  public BigInteger getN() {
+    return n;
+  }
+
+  public BigInteger getD() {
+    return d;
+  }
+
+  public BigInteger getP() {
+    return primes[0];
+  }
+
+  public BigInteger getQ() {
+    return primes[1];
+  }
+
+  /**
+   * @return d mod (p - 1)
+   */
+  public BigInteger getDP() {
+    return exponents[0];
+  }
+
+  /**
+   * @return d mod (q - 1)
+   */
+  public BigInteger getDQ() {
+    return exponents[1];
+  }
+
+  /**
+   * @return q^-1 mod p
+   */
+  public BigInteger getQInv() {
+    return coefficients[0];
+  }
+
+  public int getNumPrimes() {
+    return primes.length;
+  }
+
+  /**
+   * @return A copy of the prime factors of the modulus.
+   */
+  public BigInteger[] getPrimes() {
+    return primes.clone();
+  }
+
+  /**
+   * Computes c^d mod n for a two-prime key with p of at most MAX_WORD_PRIME_BITS bits and n of at
+   * most MAX_WORD_MODULUS_BITS bits, using long arithmetic only. Other keys fall back to
+   * {@link #sign(BigInteger)}.
+   * @param c The value being signed or decrypted, 0 <= c < n
+   * @return c^d mod n
+   */
+  public long sign(long c) {
+    long start = Metrics.startTimer();
+    long m = decrypt(c);
+    Metrics.signed(start);
+    return m;
+  }
+
+  /**
+   * Computes c^d mod n like {@link #sign(long)} without counting it as a signature, for bulk
+   * decryption.
+   * @param c The value being decrypted, 0 <= c < n
+   * @return c^d mod n
+   */
+  long decrypt(long c) {
+    if (!wordSized) {
+      return signCrt(BigInteger.valueOf(c)).longValue();
+    }
+    long p = primes[0].longValue();
+    long q = primes[1].longValue();
+    long m1 = recodedExponents[0].pow(wordContexts[0], c % p);
+    long m2 = recodedExponents[1].pow(wordContexts[1], c % q);
+    long diff = (m1 - m2) % p;
+    if (diff < 0) {
+      diff += p;
+    }
+    long h = diff * coefficients[0].longValue() % p;
+    return m2 + q * h;
+  }
+
+  /**
+   * Computes c^d mod n.
+   * @param c The value being signed or decrypted, 0 <= c < n
+   * @return c^d mod n
+   */
+  public BigInteger sign(BigInteger c) {
+    long start = Metrics.startTimer();
+    BigInteger m = signCrt(c);
+    Metrics.signed(start);
+    return m;
+  }
+
+  /**
+   * Computes c^d mod n like {@link #sign(BigInteger)} without counting it as a signature, for
+   * bulk decryption.
+   * @param c The value being decrypted, 0 <= c < n
+   * @return c^d mod n
+   */
+  BigInteger decrypt(BigInteger c) {
+    return signCrt(c);
+  }
+
+  private BigInteger signCrt(BigInteger c) {
+    BigInteger m1 = powModPrime(c, 0);
+    BigInteger m2 = powModPrime(c, 1);
+    BigInteger h = m1.subtract(m2).multiply(coefficients[0]).mod(primes[0]);
+    BigInteger m = m2.add(primes[1].multiply(h));
+    BigInteger product = primes[0].multiply(primes[1]);
+    for (int i = 2; i < primes.length; i++) {
+      BigInteger mi = powModPrime(c, i);
+      h = mi.subtract(m).multiply(coefficients[i]).mod(primes[i]);
+      m = m.add(product.multiply(h));
+      product = product.multiply(primes[i]);
+    }
+    return m;
+  }
+
+  private BigInteger powModPrime(BigInteger c, int i) {
+    BigInteger reduced = c.mod(primes[i]);
+    if (wordContexts[i] != null) {
+      return BigInteger.valueOf(
+          recodedExponents[i].pow(wordContexts[i], reduced.longValue()));
+    }
+    return reduced.modPow(exponents[i], primes[i]);
+  }
+}
@@ -1,24 +1,57 @@
 package main;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import javax.management.JMException;
 
 public class RSASystem {
   
-  private static final Random randGen = new Random();
-  private static StringBuilder sb = new StringBuilder();
+  //source of the random number generator of every run
+  private static volatile RandomStreams randomStreams =
+      RandomStreams.seeded(new Random().nextLong());
+  //selects the streams of generateKeyPairs, apart from those of the runs
+  private static final long BATCH_STREAM_SALT = 0x4241544348L;
   private static final int NUM_RANDOM_BITS = 5;
+  //the int path builds primes of NUM_RANDOM_BITS + 2 bits
+  protected static final int SMALL_MODULUS_BITS = 2 * (NUM_RANDOM_BITS + 2);
   private static final int NUM_PRIMALITY_TESTS = 20;
   private static final String ALICE = " Alice"; //has leading space to match sample output
-  private static int[] alicePairs;
-  private static int[] trentPairs;
-  private static String FAST_EXPO_TRACE = new String();
+  //recoded private exponents and Montgomery contexts of the signing keys
+  private static final ExponentCache SIGNING_CACHE = new ExponentCache();
   
-  public static void main(String[] args) throws IOException {
-   if (args.length != 2) { 
-    System.err.println("Usage: <numOutputFiles> <pathToOutputFolder>");
+  public static void main(String[] args) throws IOException, InterruptedException {
+   boolean packed = false;
+   boolean gzip = false;
+   boolean metrics = false;
+   List<String> positional = new ArrayList<String>(args.length);
+   for (String arg : args) {
+     if (arg.equals("--packed")) {
+       packed = true;
+     } else if (arg.equals("--gzip")) {
+       gzip = true;
+     } else if (arg.equals("--metrics")) {
+       metrics = true;
+     } else {
+       positional.add(arg);
+     }
+   }
+   args = positional.toArray(new String[positional.size()]);
+   if (args.length != 2 && args.length != 3) { 
+    System.err.println(
+        "Usage: <numOutputFiles> <pathToOutputFolder> [numThreads] [--packed] [--gzip] "
+        + "[--metrics]");
     System.exit(0);
    }
    int numIters = 20;
@@ -32,101 +65,187 @@ public class RSASystem {
      System.err.println("The number of output files must be a non-negative integer value");
      System.exit(0);
    } 
+   int numThreads = 1;
+   if (args.length == 3) {
+     try {
+       numThreads = Integer.parseInt(args[2]);
+     } catch (NumberFormatException e) {
+       numThreads = 0;
+     }
+     if (numThreads < 1) {
+       System.err.println("The number of threads must be a positive integer value");
+       System.exit(0);
+     }
+   }
+    if (metrics) {
+      try {
+        Metrics.registerMBean();
+      } catch (JMException e) {
+        System.err.println("The metrics MBean could not be registered: " + e.getMessage());
+        Metrics.GLOBAL.setEnabled(true);
+      }
+    }
     File outputDirectory = new File (args[1] + "output/");
     outputDirectory.mkdir();
-    if (outputDirectory.exists() && outputDirectory.isDirectory()) {
-      File[] files = outputDirectory.listFiles();
-      for (File f : files) {
-        f.delete();
+    OutputPipeline out = new OutputPipeline(
+        outputDirectory, packed, gzip, OutputPipeline.DEFAULT_QUEUE_CAPACITY);
+    try {
+      out.clearDirectory();
+      writeOutputFiles(out, numIters, numThreads);
+    } finally {
+      out.close();
+    }
+    if (metrics) {
+      System.err.print(Metrics.GLOBAL.snapshot());
+    }
+  }
+  
+  /**
+   * Generates the output files, one run per file. With more than one thread the runs are spread
+   * over a fixed thread pool; every run has its own context, so they do not interfere. File i
+   * always uses random stream i, so seeded output does not depend on the number of threads.
+   * @param out The pipeline the reports are written through.
+   * @param numFiles The number of output files.
+   * @param numThreads The number of threads generating files, numThreads > 0
+   */
+  protected static void writeOutputFiles(final OutputPipeline out, int numFiles, int numThreads)
+      throws IOException, InterruptedException {
+    final RandomStreams streams = randomStreams;
+    if (numThreads == 1) {
+      for (int i = 1; i <= numFiles; i++) {
+        writeOutputFile(out, i, streams.stream(i));
+      }
+      return;
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+    try {
+      List<Future<Void>> results = new ArrayList<Future<Void>>(numFiles);
+      for (int i = 1; i <= numFiles; i++) {
+        final int fileNumber = i;
+        results.add(pool.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException, InterruptedException {
+            writeOutputFile(out, fileNumber, streams.stream(fileNumber));
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> result : results) {
+        try {
+          result.get();
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException) {
+            throw (IOException) e.getCause();
+          }
+          throw new RuntimeException(e.getCause());
+        }
       }
+    } finally {
+      pool.shutdown();
     }
-    for (int i = 1; i <= numIters; i++) {
-      String fileName = outputDirectory + "/output" + i + ".txt";
-      FileWriter fw = new FileWriter(fileName);
-      printAll();
-      fw.append(sb.toString());
-      sb = new StringBuilder();
-      fw.close();
+  }
+  
+  /**
+   * Computes the full report of a run with a fresh context and streams it into the pipeline one
+   * section at a time.
+   * @param out The pipeline the report is written through.
+   * @param fileNumber The number in the name of the file.
+   * @param randGen The random number generator of the run.
+   */
+  protected static void writeOutputFile(OutputPipeline out, int fileNumber, Random randGen)
+      throws IOException, InterruptedException {
+    RunContext ctx = new RunContext(randGen);
+    Writer report = out.open(fileNumber);
+    try {
+      new Report(ctx).writeTo(report);
+    } finally {
+      report.close();
     }
   }
   
   /**
    * Calls all the other print methods.
+   * @param ctx The state of the current run.
    */
-  protected static void printAll() {
-    printRandomNumbers();
-    printNotAPrime();
-    printPerhapsAPrime();
-    printPrimesAndKeyPairs();
-    printDigitalCertificate();
-    printAuthentication();
+  protected static void printAll(RunContext ctx) {
+    printRandomNumbers(ctx);
+    printNotAPrime(ctx);
+    printPerhapsAPrime(ctx);
+    printPrimesAndKeyPairs(ctx);
+    printDigitalCertificate(ctx);
+    printAuthentication(ctx);
   }
   
   /**
-   * Appends the authentication data to the global StringBuilder.
+   * Appends the authentication data to the StringBuilder of the run.
+   * @param ctx The state of the current run.
    */
-  protected static void printAuthentication() {
+  protected static void printAuthentication(RunContext ctx) {
+    StringBuilder sb = ctx.sb;
     sb.append("line:271\n");
-    int n = alicePairs[2];
-    String nStr = getBinaryString(n, 32);
-    int k = calculateK(nStr);
-    String u = calculateU(k);
-    sb.append(String.format("k = %d, u = %d\n\n", k, Integer.parseInt(u, 2)));
+    int n = ctx.alicePairs[2];
+    int k = calculateK(n);
+    int uInt = calculateU(ctx, k);
+    String u = getBinaryString(uInt, 32);
+    sb.append(String.format("k = %d, u = %d\n\n", k, uInt));
     sb.append("line:274\n");
     sb.append(String.format("u = %s\n\n", u));
     
-    int d = alicePairs[4];
-    int e = alicePairs[3];
-    int hashOfU = Integer.parseInt(computeHash(u), 2);
-    int uInt = Integer.parseInt(u, 2);
-    int v = fastExponentiation(hashOfU, d, n, false);
-    int Ev = fastExponentiation(v, e, n, true);
+    int d = ctx.alicePairs[4];
+    int e = ctx.alicePairs[3];
+    int hashOfU = new XorFoldHash().updateInt(uInt).digest();
+    int v = sign(ctx.aliceCrtKey, hashOfU, d, n);
+    int Ev = fastExponentiation(v, e, n);
     sb.append("line:281\n");
     sb.append(String.format("u = %d, h(u) = %d, v = %d, Ev = %d\n\n", uInt, hashOfU, v, Ev));
     
     sb.append("line:285\n");
-    sb.append(FAST_EXPO_TRACE);
+    //the table is traced separately so the untraced result can be printed first
+    TraceBuffer trace = ctx.startTrace();
+    if (trace != null) {
+      fastExponentiation(trace, v, e, n);
+      ctx.publishTrace();
+    }
   }
   
   /**
-   * Computes k by finding the first non-zero bit going from left to right in the input String.
-   * @param n The input string on which k is computed
-   * @return the position of first non-zero bit in n going from left to right
+   * Computes k, the position of the most significant set bit.
+   * @param n The number on which k is computed, n != 0
+   * @return the position of the first non-zero bit in n going from left to right, counted from
+   *         the least significant bit
    */
-  protected static int calculateK(String n) {
-    int counter = 0;
-    while (n.charAt(counter) != '1') {
-      counter++;
-    }
-    return n.length() - counter - 1;
+  protected static int calculateK(int n) {
+    return 31 - Integer.numberOfLeadingZeros(n);
   }
   
   /**
-   * Computes U given the position of the first non-zero bit.
+   * Computes U given the position of the first non-zero bit. U has k bits: a leading one
+   * followed by k - 1 random bits.
+   * @param ctx The state of the current run.
    * @param k The position of the first non-zero bit going from left to right
-   * @return A binary String representation of U with padding to 32 bits
+   * @return U
    */
-  protected static String calculateU(int k) {
-    StringBuilder temp = new StringBuilder(k);
-    temp.append(1);
+  protected static int calculateU(RunContext ctx, int k) {
+    int u = 1;
     for (int i = 0; i < k - 1; i++) {
-      temp.append(getLeastSignificantBit(randGen.nextInt()));
+      u = u << 1 | getLeastSignificantBit(ctx.randGen.nextInt());
     }
-    int temp2 = Integer.parseInt(temp.toString(), 2);
-    return getBinaryString(temp2, 32);
+    return u;
   }
   
   /**
-   * Appends the Digital Certificate data to the global StringBuilder.
+   * Appends the Digital Certificate data to the StringBuilder of the run.
+   * @param ctx The state of the current run.
    */
-  protected static void printDigitalCertificate() {
+  protected static void printDigitalCertificate(RunContext ctx) {
+    StringBuilder sb = ctx.sb;
     String nameStr = getLeftPaddedBinaryString(ALICE, 6);
-    String n = getBinaryString(alicePairs[2], 32);
-    String e = getBinaryString(alicePairs[3], 32);
+    String n = getBinaryString(ctx.alicePairs[2], 32);
+    String e = getBinaryString(ctx.alicePairs[3], 32);
     String r = nameStr + n + e;
-    String hashOfrStr = computeHash(r);
-    int hashOfr = Integer.parseInt(hashOfrStr, 2);
-    int s = fastExponentiation(hashOfr, trentPairs[4], trentPairs[2], false);
+    int hashOfr = hashCertificate(new XorFoldHash(), ALICE, ctx.alicePairs[2],
+        ctx.alicePairs[3]);
+    int s = sign(ctx.trentCrtKey, hashOfr, ctx.trentPairs[4], ctx.trentPairs[2]);
     sb.append("\nline:243\n");
     sb.append(String.format("r = %s\n", r));
     sb.append(String.format("h(r) = %s\n", getBinaryString(hashOfr, 32)));
@@ -135,54 +254,109 @@ public class RSASystem {
     sb.append(String.format("h(r) = %d, s = %d\n\n", hashOfr, s));
   }
   
+  /**
+   * Computes h(r) for the certificate r = name || n || e.
+   * @param hash The hash to use, with no bytes added since its last digest.
+   * @param name The name of the owner of the key.
+   * @param n The modulus of the public key.
+   * @param e The public exponent.
+   * @return The hash of the certificate.
+   */
+  protected static int hashCertificate(XorFoldHash hash, String name, int n, int e) {
+    //the leading zero bytes of the padded name do not change the hash
+    return hash.update(name.getBytes()).updateInt(n).updateInt(e).digest();
+  }
+  
+  /**
+   * Signs a message with a private key, using its CRT form when there is one.
+   * @param crtKey The CRT form of the key, or null to exponentiate modulo n.
+   * @param m The message, 0 <= m < n
+   * @param d The private exponent.
+   * @param n The modulus.
+   * @return m^d mod n
+   */
+  protected static int sign(RSAPrivateCrtKey crtKey, int m, int d, int n) {
+    if (crtKey != null) {
+      return (int) crtKey.sign(m);
+    }
+    long start = Metrics.startTimer();
+    int s = (int) SIGNING_CACHE.pow(m, d, n);
+    Metrics.signed(start);
+    return s;
+  }
+  
   /**
    * Computes the value of modular exponentiation. No checks for invalid inputs.
    * @param a   The base
    * @param x   The exponent
    * @param n   The modulus
-   * @param printOn Value that determines whether data is appended to the global StringBuilder
    * @return The value of the modular exponentiation computation
    */
-  protected static int fastExponentiation(int a, int x, int n, boolean printOn) {
-    StringBuilder temp = new StringBuilder();
-    if (printOn) temp.append(String.format("%-2s|%-3s|%-6s|%-6s\n", "i", "xi", "y", "y"));
+  protected static int fastExponentiation(int a, int x, int n) {
+    Metrics.exponentiation(getBitLength(x), Integer.bitCount(x));
+    return ModularArithmetic.pow(a, x, n);
+  }
+  
+  /**
+   * Computes the value of modular exponentiation and records every step. No checks for invalid
+   * inputs.
+   * @param trace The buffer the steps are recorded into.
+   * @param a   The base
+   * @param x   The exponent
+   * @param n   The modulus
+   * @return The value of the modular exponentiation computation
+   */
+  protected static int fastExponentiation(TraceBuffer trace, int a, int x, int n) {
+    trace.record(TraceBuffer.EXPO_HEADER);
     int y = 1;
-    String bitString = Integer.toBinaryString(x);
-    for (int i = 0; i < bitString.length(); i++) {
-      int counter = bitString.length() - i - 1;
-      y = y * y % n;
-      if (printOn) temp.append(String.format("%-2d|%-3c|%-6d|", counter, bitString.charAt(i), y));
-      if (bitString.charAt(i) == '1') {
-        y = a * y % n;
+    for (int counter = getBitLength(x) - 1; counter >= 0; counter--) {
+      int bit = x >>> counter & 1;
+      y = ModularArithmetic.multiply(y, y, n);
+      int ySquared = y;
+      if (bit == 1) {
+        y = ModularArithmetic.multiply(a, y, n);
       }
-      if (printOn) temp.append(String.format("%-6d\n", y));
+      trace.record(TraceBuffer.EXPO_STEP, counter, bit, ySquared, y);
     }
-    if (printOn) FAST_EXPO_TRACE = temp.toString();
     return y;
   }
   
+  /**
+   * Computes the value of modular exponentiation for multi-limb values. Odd moduli use
+   * sliding-window exponentiation with Montgomery multiplication. No checks for invalid inputs.
+   * @param a   The base, a >= 0
+   * @param x   The exponent, x >= 0
+   * @param n   The modulus, n > 1
+   * @return The value of the modular exponentiation computation
+   */
+  protected static BigInteger fastExponentiation(BigInteger a, BigInteger x, BigInteger n) {
+    if (n.testBit(0)) {
+      SlidingWindowExponent recoded = SlidingWindowExponent.recode(x);
+      Metrics.exponentiation(x.bitLength(), recoded.getNumMultiplications());
+      return recoded.pow(new MultiLimbMontgomery(n), a);
+    }
+    Metrics.exponentiation(x.bitLength(), x.bitCount());
+    return a.modPow(x, n);
+  }
+  
   /**
    * Computes the hash of the input string. The hash function splits the input string into
    * bytes and applies the XOR operation to each bit in each byte. The hash function maps an 
    * N byte string to a 1 byte string. The input string is not checked for valid length.
+   * Callers that have the message as bytes should use {@link XorFoldHash} directly.
    * @param str The following property must hold: {@code str.length % 8 == 0}
    * @return The hash of the input string.
    */
   protected static String computeHash(String str) {
-    String[] bytes = str.split("(?<=\\G.{8})");
-    char[][] intStrs = new char[bytes.length][32];
-    for (int i = 0; i < intStrs.length; i++) {
-      intStrs[i] = bytes[i].toCharArray();
-    }
-    String res = "";
-    for (int i = 0; i < intStrs[0].length; i++) {
-      int sum = 0;
-      for (int j = 0; j < intStrs.length; j++) {
-        sum += Integer.parseInt(String.valueOf(intStrs[j][i]));
+    XorFoldHash hash = new XorFoldHash();
+    for (int i = 0; i + 8 <= str.length(); i += 8) {
+      int b = 0;
+      for (int j = i; j < i + 8; j++) {
+        b = b << 1 | (str.charAt(j) - '0');
       }
-      res += sum % 2;
+      hash.update((byte) b);
     }
-    return res;
+    return getBinaryString(hash.digest(), 8);
   }
   
   /**
@@ -195,21 +369,58 @@ public class RSASystem {
     int numBits = strLenInBytes << 3;
     byte[] bytes = name.getBytes();
     StringBuilder bitStr = new StringBuilder(numBits);
+    for (int i = bytes.length << 3; i < numBits; i++) {
+      bitStr.append('0');
+    }
     for (byte b : bytes) {
-      bitStr.append(getBinaryString(b, 8));
+      appendBinaryString(bitStr, b, 8);
     }
-    return String.format("%" + numBits + "s", bitStr.toString()).replace(' ', '0');
+    return bitStr.toString();
   }
   
   /**
    * Finds the greatest common denominator for two integers. No tests for Invalid inputs.
+   * @param ctx The state of the current run.
    * @param a The following needs to apply: a > b
    * @param b The following needs to apply: b < a
-   * @param printOn Value that determines whether content of method is appended to global 
-   *        StringBuilder.
+   * @param printOn Value that determines whether the table of the computation is traced.
    * @return One iff a and b are relatively prime otherwise null.
    */
-  protected static Integer extendedEuclideanAlgorithm(int a, int b, boolean printOn) {
+  protected static Integer extendedEuclideanAlgorithm(RunContext ctx, int a, int b,
+      boolean printOn) {
+    TraceBuffer trace = printOn ? ctx.startTrace() : null;
+    if (trace == null) {
+      return extendedEuclideanAlgorithm(a, b);
+    }
+    Integer res = extendedEuclideanAlgorithm(trace, a, b);
+    ctx.publishTrace();
+    return res;
+  }
+  
+  /**
+   * Inverts b modulo a with the binary extended GCD, which needs no divisions. No tests for
+   * Invalid inputs.
+   * @param a The following needs to apply: a > b
+   * @param b The following needs to apply: b < a
+   * @return The inverse of b modulo a iff a and b are relatively prime otherwise null.
+   */
+  protected static Integer extendedEuclideanAlgorithm(int a, int b) {
+    long inverse = ModularInverse.inverseOrZero(b, a);
+    if (inverse == 0) {
+      return null;
+    }
+    return (int) inverse;
+  }
+  
+  /**
+   * Finds the greatest common denominator for two integers and records every step. No tests for
+   * Invalid inputs.
+   * @param trace The buffer the steps are recorded into.
+   * @param a The following needs to apply: a > b
+   * @param b The following needs to apply: b < a
+   * @return One iff a and b are relatively prime otherwise null.
+   */
+  protected static Integer extendedEuclideanAlgorithm(TraceBuffer trace, int a, int b) {
     int r1 = a,
         r2 = b, 
         r3 = a % b, 
@@ -217,8 +428,7 @@ public class RSASystem {
     int j = 1;
     int sj = 1, s1 = 1, s2 = 0;
     int tj = 0, t1 = 0, t2 = 1;
-    if (printOn) sb.append(String.format(
-        "%-2s|%-7s|%-7s|%-7s|%-7s|%-7s|%-7s\n", "j", "qi", "r", "ri+1", "ri+2", "si", "ti"));
+    trace.record(TraceBuffer.EEA_HEADER);
     while ((sj * a + tj * b) != 1) {
       if (j == 1) {
         sj = 1;
@@ -230,9 +440,7 @@ public class RSASystem {
         sj = s2 - q2 * s1;
         tj = t2 - q2 * t1;
       }
-      if (printOn) sb.append(String.format(
-          "%-2d|%-7d|%-7d|%-7d|%-7d|%-7d|%-7d\n", j, qi, r1, r2, r3, sj, tj));
-      r1 = sj * r2 + tj * r3;
+      trace.record(TraceBuffer.EEA_STEP, j, qi, r1, r2, r3, sj, tj);
       r1 = r2;
       r2 = r3;
       q2 = q1;
@@ -242,11 +450,13 @@ public class RSASystem {
       t2 = t1;
       t1 = tj;
       j++;
-      try {
-        r3 = r1 % r2;
-        qi = r1 / r2;
-      } catch (ArithmeticException e) {break;}
+      if (r2 == 0) {
+        break;
+      }
+      r3 = r1 % r2;
+      qi = r1 / r2;
     }
+    Metrics.eeaIterations(j - 1);
     //need values for one extra iteration
     if (j == 1) {
       sj = 1;
@@ -258,8 +468,7 @@ public class RSASystem {
       sj = s2 - q2 * s1;
       tj = t2 - q2 * t1;
     }
-    if (printOn)
-      sb.append(String.format("%-2d|%-7s|%-7d|%-7s|%-7s|%-7d|%-7d\n", j, "", r1, "", "", sj, tj));
+    trace.record(TraceBuffer.EEA_LAST, j, r1, sj, tj);
     if (r1 == 1) {
       return tj;
     }
@@ -267,11 +476,15 @@ public class RSASystem {
   }
   
   /**
-   * Appends the data for the primes, modulus and key pairs for Alice and Trent to the global 
-   * StringBuilder.
+   * Appends the data for the primes, modulus and key pairs for Alice and Trent to the 
+   * StringBuilder of the run.
+   * @param ctx The state of the current run.
    */
-  protected static void printPrimesAndKeyPairs() {
-    alicePairs = getPrimesAndKeyPairs(true);
+  protected static void printPrimesAndKeyPairs(RunContext ctx) {
+    StringBuilder sb = ctx.sb;
+    int[] alicePairs = getPrimesAndKeyPairs(ctx, true);
+    ctx.alicePairs = alicePairs;
+    ctx.aliceCrtKey = getCrtKey(ctx, alicePairs);
     sb.append("\nline:205\n");
     sb.append(String.format("d = %d\n", alicePairs[1]));
     sb.append("\nline:209\n");
@@ -283,7 +496,9 @@ public class RSASystem {
     sb.append(String.format("e = %s\n", getBinaryString(alicePairs[3], 32)));
     sb.append(String.format("d = %s\n", getBinaryString(alicePairs[4], 32)));
     
-    trentPairs = getPrimesAndKeyPairs(false);
+    int[] trentPairs = getPrimesAndKeyPairs(ctx, false);
+    ctx.trentPairs = trentPairs;
+    ctx.trentCrtKey = getCrtKey(ctx, trentPairs);
     sb.append("\nline:218\n");
     sb.append(String.format("p = %d, q = %d, n = %d, e = %d, d = %d\n", 
         trentPairs[0], trentPairs[1], trentPairs[2], trentPairs[3], trentPairs[4]));
@@ -294,39 +509,121 @@ public class RSASystem {
     sb.append(String.format("d = %s\n", getBinaryString(trentPairs[4], 32)));
   }
   
+  /**
+   * Generates the keys of Alice and Trent without appending anything, for reports that need the
+   * keys but do not show them.
+   * @param ctx The state of the current run.
+   */
+  protected static void generateKeys(RunContext ctx) {
+    ctx.alicePairs = getPrimesAndKeyPairs(ctx, false);
+    ctx.aliceCrtKey = getCrtKey(ctx, ctx.alicePairs);
+    ctx.trentPairs = getPrimesAndKeyPairs(ctx, false);
+    ctx.trentCrtKey = getCrtKey(ctx, ctx.trentPairs);
+  }
+  
+  /**
+   * Precomputes the CRT form of a private key.
+   * @param ctx The state of the current run.
+   * @param pairs Array containing values in the following order {p, q, n, e, d}.
+   * @return The CRT key, or null if CRT signing is off.
+   */
+  protected static RSAPrivateCrtKey getCrtKey(RunContext ctx, int[] pairs) {
+    return ctx.crtSigning ? RSAPrivateCrtKey.fromIntArray(pairs) : null;
+  }
+  
   /**
    * Calls findPrimesAndKeyPairs() until a valid set is obtained.
-   * @param printOn Value determines whether content is appended to global StringBuilder.
+   * @param ctx The state of the current run.
+   * @param printOn Value determines whether content is appended to StringBuilder of the run.
    * @return Array containing values in the following order {p, q, n, e, d}.
    */
-  protected static int[] getPrimesAndKeyPairs(boolean printOn) {
-    int[] temp;
-    do { 
-      temp = findPrimesAndKeyPairs(printOn);
-    } while (temp == null);
+  protected static int[] getPrimesAndKeyPairs(RunContext ctx, boolean printOn) {
+    long start = Metrics.startTimer();
+    int[] temp = findPrimesAndKeyPairs(ctx, printOn);
+    while (temp == null) {
+      Metrics.keyRetry();
+      temp = findPrimesAndKeyPairs(ctx, printOn);
+    }
+    Metrics.keyGenerated(start);
     return temp;
   }
   
+  /**
+   * Generates a key pair with the requested modulus size. SMALL_MODULUS_BITS selects the int
+   * path, whose moduli have at most that many bits; sizes from RSAKeyGenerator.MIN_MODULUS_BITS
+   * to RSAKeyGenerator.MAX_MODULUS_BITS are handled by {@link RSAKeyGenerator}.
+   * @param ctx The state of the current run.
+   * @param modulusBits The size of the modulus in bits.
+   * @return The generated key pair.
+   * @throws IllegalArgumentException If no path supports the size.
+   */
+  protected static RSAKeyPair getPrimesAndKeyPairs(RunContext ctx, int modulusBits) {
+    checkModulusBits(modulusBits);
+    if (modulusBits == SMALL_MODULUS_BITS) {
+      return RSAKeyPair.fromIntArray(getPrimesAndKeyPairs(ctx, false));
+    }
+    return new RSAKeyGenerator(modulusBits, ctx.randGen).generate();
+  }
+
+  /**
+   * @param modulusBits A requested modulus size in bits.
+   * @throws IllegalArgumentException If the size is neither SMALL_MODULUS_BITS nor supported by
+   *         {@link RSAKeyGenerator}.
+   */
+  protected static void checkModulusBits(int modulusBits) {
+    if (modulusBits != SMALL_MODULUS_BITS && (modulusBits < RSAKeyGenerator.MIN_MODULUS_BITS
+        || modulusBits > RSAKeyGenerator.MAX_MODULUS_BITS)) {
+      throw new IllegalArgumentException(String.format(
+          "The modulus size must be %d bits for the small keys or between %d and %d bits",
+          SMALL_MODULUS_BITS, RSAKeyGenerator.MIN_MODULUS_BITS, RSAKeyGenerator.MAX_MODULUS_BITS));
+    }
+  }
+
+  /**
+   * Generates many key pairs at once on the common fork/join pool. The keys are drawn from a
+   * family of streams derived from those of the runs, so no batch key repeats the numbers of a
+   * report.
+   * @param count The number of key pairs.
+   * @param modulusBits The size of the moduli in bits.
+   * @return The key pairs in a structure of arrays.
+   */
+  protected static KeyPairBatch generateKeyPairs(int count, int modulusBits) {
+    return KeyPairBatch.generate(randomStreams.derive(BATCH_STREAM_SALT),
+        ForkJoinPool.commonPool(), count, modulusBits);
+  }
+
   /**
    * Finds two numbers that are relatively prime and computes n, e and d.
-   * @param printOn Value determines whether content is appended to global StringBuilder.
+   * @param ctx The state of the current run.
+   * @param printOn Value determines whether content is appended to StringBuilder of the run.
    * @return Array containing values in the following order {p, q, n, e, d}.
    */
-  protected static int[] findPrimesAndKeyPairs(boolean printOn) {
+  protected static int[] findPrimesAndKeyPairs(RunContext ctx, boolean printOn) {
+    StringBuilder sb = ctx.sb;
     int p, q;
     do {
-      p = getTestedPrime();
-      q = getTestedPrime();
+      p = getTestedPrime(ctx, ctx.publicExponent);
+      q = getTestedPrime(ctx, ctx.publicExponent);
     } while (p == q);
     int n = p * q;
     int phiOfN = (p-1) * (q-1);
     int e = 2;
     Integer d = 0;
     if (printOn) sb.append("line:192\n");
+    if (ctx.publicExponent != 0) {
+      return getKeyPairsWithExponent(ctx, p, q, ctx.publicExponent, printOn);
+    }
     do {
       e++;
-      if (printOn) sb.append(String.format("e = %d\n", e));
-      d = extendedEuclideanAlgorithm(phiOfN, e, printOn);
+      Metrics.exponentTried();
+      TraceBuffer trace = printOn ? ctx.startTrace() : null;
+      if (trace == null) {
+        d = extendedEuclideanAlgorithm(phiOfN, e);
+      } else {
+        trace.record(TraceBuffer.KEY_EXPONENT, e);
+        d = extendedEuclideanAlgorithm(trace, phiOfN, e);
+        ctx.publishTrace();
+      }
     } while (d == null && e < phiOfN);
     //need to restart with different primes
     if (e >= phiOfN || d == null) {
@@ -340,42 +637,82 @@ public class RSASystem {
   }
   
   /**
-   * Gets a number that is a candidate for a prime and runs the primality test a specified 
-   * number of times.
-   * @return A number that is prime with a statistically significant confidence.
+   * Computes the key pairs for a fixed public exponent that is known to be invertible.
+   * @param ctx The state of the current run.
+   * @param p The first prime, p != 1 mod e
+   * @param q The second prime, q != 1 mod e
+   * @param e The public exponent, an odd prime.
+   * @param printOn Value determines whether content is appended to StringBuilder of the run.
+   * @return Array containing values in the following order {p, q, n, e, d}.
    */
-  protected static int getTestedPrime() {
-    boolean foundCandidatePrime = false;
-    int p = 0;
-    while (!foundCandidatePrime) {
-      p = getCandidatePrime();
-      for (int i = 0; i < NUM_PRIMALITY_TESTS; i++) {
-        int a = getRandomNumberForPrimalityTest(p);
-        if (!isPerhapsPrime(a, p-1, false)) {
-          break;
-        }
-      }
-      foundCandidatePrime = true;
+  protected static int[] getKeyPairsWithExponent(RunContext ctx, int p, int q, int e,
+      boolean printOn) {
+    int phiOfN = (p-1) * (q-1);
+    Metrics.exponentTried();
+    //the algorithm needs its second argument to be the smaller one
+    int reduced = e % phiOfN;
+    TraceBuffer trace = printOn ? ctx.startTrace() : null;
+    Integer d;
+    if (trace == null) {
+      d = extendedEuclideanAlgorithm(phiOfN, reduced);
+    } else {
+      trace.record(TraceBuffer.KEY_EXPONENT, e);
+      d = extendedEuclideanAlgorithm(trace, phiOfN, reduced);
+      ctx.publishTrace();
+    }
+    if (d < 0) {
+      d += phiOfN;
+    }
+    return new int[] { p, q, p * q, e, d };
+  }
+  
+  /**
+   * Draws primes until one is suitable for the public exponent.
+   * @param ctx The state of the current run.
+   * @param e An odd prime; primes p with p = 1 mod e are skipped. Zero skips nothing.
+   * @return A prime p with p != 1 mod e
+   */
+  protected static int getTestedPrime(RunContext ctx, int e) {
+    int p = getTestedPrime(ctx);
+    while (e != 0 && p % e == 1) {
+      p = getTestedPrime(ctx);
     }
     return p;
   }
   
+  /**
+   * Draws candidate primes until one passes the deterministic Miller-Rabin test.
+   * @param ctx The state of the current run.
+   * @return A number that is prime.
+   */
+  protected static int getTestedPrime(RunContext ctx) {
+    while (true) {
+      int p = getCandidatePrime(ctx);
+      Metrics.candidateDrawn();
+      if (MillerRabin.isPrime(p)) {
+        return p;
+      }
+      Metrics.candidateRejected();
+    }
+  }
+  
   /**
    * Appends data for running the primality test on some candidate prime.
+   * @param ctx The state of the current run.
    */
-  protected static void printPerhapsAPrime() {
+  protected static void printPerhapsAPrime(RunContext ctx) {
     boolean foundAPrime = false;
     boolean doPrint = false;
     int a, possiblePrime;
-    sb.append("line:169\n");
+    ctx.sb.append("line:169\n");
     while (!foundAPrime) {
-      possiblePrime = getCandidatePrime();
+      possiblePrime = getCandidatePrime(ctx);
       for (int i = 0; i < NUM_PRIMALITY_TESTS; i++) {
         if (i == NUM_PRIMALITY_TESTS - 1) {
           doPrint = true;
         }
-        a = getRandomNumberForPrimalityTest(possiblePrime);
-        foundAPrime = isPerhapsPrime(a, possiblePrime-1, doPrint);
+        a = getRandomNumberForPrimalityTest(ctx, possiblePrime);
+        foundAPrime = isPerhapsPrime(ctx, a, possiblePrime-1, doPrint);
         if (!foundAPrime) {
           break;
         }
@@ -385,12 +722,13 @@ public class RSASystem {
   
   /**
    * Generates a possible prime number by using random bits.
+   * @param ctx The state of the current run.
    * @return A possibly prime number.
    */
-  protected static int getCandidatePrime() {
+  protected static int getCandidatePrime(RunContext ctx) {
     int[] randomBits = new int[NUM_RANDOM_BITS];
     for (int i = NUM_RANDOM_BITS; i > 0 ; i--) {
-      int randNum = randGen.nextInt();
+      int randNum = ctx.randGen.nextInt();
       int randBit = getLeastSignificantBit(randNum);
       randomBits[i-1] = randBit;
     }
@@ -399,84 +737,152 @@ public class RSASystem {
   }
   
   /**
-   * Appends the data for running the primality test on a non-prime number to the global 
-   * StringBuilder.
+   * Appends the data for running the primality test on a non-prime number to the 
+   * StringBuilder of the run.
+   * @param ctx The state of the current run.
    */
-  protected static void printNotAPrime() {
+  protected static void printNotAPrime(RunContext ctx) {
     boolean foundNonPrime = false;
     int a;
     int compositeNumber = 4;
-    sb.append("line:161\n");
+    ctx.sb.append("line:161\n");
     while (!foundNonPrime) {
       compositeNumber *= 2;
-      a = getRandomNumberForPrimalityTest(compositeNumber);
-      foundNonPrime = !isPerhapsPrime(a, compositeNumber-1, false);
+      a = getRandomNumberForPrimalityTest(ctx, compositeNumber);
+      foundNonPrime = !isPerhapsPrime(ctx, a, compositeNumber-1, false);
       if (foundNonPrime) {
-        isPerhapsPrime(a, compositeNumber-1, true);
+        isPerhapsPrime(ctx, a, compositeNumber-1, true);
       }
     }
   }
   
+  /**
+   * Determines whether a number is prime or not.
+   * @param ctx The state of the current run.
+   * @param a randomly chosen value between 0 < a < n.
+   * @param x x = n - 1; where n is the candidate being tested
+   * @param printOn Value that determines whether the table of the test is traced.
+   * @return True if n is a possible prime otherwise false.
+   */
+  protected static boolean isPerhapsPrime(RunContext ctx, int a, int x, boolean printOn) {
+    TraceBuffer trace = printOn ? ctx.startTrace() : null;
+    if (trace == null) {
+      return isPerhapsPrime(a, x);
+    }
+    boolean res = isPerhapsPrime(trace, a, x);
+    ctx.publishTrace();
+    return res;
+  }
+  
   /**
    * Determines whether a number is prime or not.
    * @param a randomly chosen value between 0 < a < n.
    * @param x x = n - 1; where n is the candidate being tested
-   * @param printOn Value that determines whether data is appended to the global StringBuilder.
    * @return True if n is a possible prime otherwise false.
    */
-  protected static boolean isPerhapsPrime(int a, int x, boolean printOn) {
+  protected static boolean isPerhapsPrime(int a, int x) {
+    //the products of residues below 2^31 fit in a long
+    long n = (long) x + 1;
+    long y = 1;
+    for (int counter = getBitLength(x) - 1; counter >= 0; counter--) {
+      long z = y;
+      y = y * y % n;
+      if (y == 1 && z != 1 && z != n - 1) {
+        return false;
+      }
+      if ((x >>> counter & 1) == 1) {
+        y = a * y % n;
+      }
+    }
+    return y == 1;
+  }
+  
+  /**
+   * Determines whether a number is prime or not and records every step.
+   * @param trace The buffer the steps are recorded into.
+   * @param a randomly chosen value between 0 < a < n.
+   * @param x x = n - 1; where n is the candidate being tested
+   * @return True if n is a possible prime otherwise false.
+   */
+  protected static boolean isPerhapsPrime(TraceBuffer trace, int a, int x) {
     int n = x + 1;
     int y = 1;
-    String bitString = Integer.toBinaryString(x);
-    if (printOn) sb.append(String.format("n = %d, a = %d\n", n, a));
-    if (printOn) sb.append(String.format("%-2s|%-3s|%-4s|%-4s|%-4s\n", "i", "xi", "z", "y", "y"));
-    for (int i = 0; i < bitString.length(); i++) {
+    int numBits = getBitLength(x);
+    trace.record(TraceBuffer.PRIME_HEADER, n, a);
+    for (int counter = numBits - 1; counter >= 0; counter--) {
       int z = y;
-      int counter = bitString.length() - i - 1;
-      if (printOn) sb.append(String.format("%-2s|%-3s|%-4s|", counter, bitString.charAt(i), z));
-      y = y * y % n;
-      if (printOn) sb.append(String.format("%-4s|", y));
+      int bit = x >>> counter & 1;
+      y = ModularArithmetic.multiply(y, y, n);
       if (y == 1 && z != 1 && z != n - 1) {
+        trace.record(TraceBuffer.PRIME_ROOT_STEP, counter, bit, z, y);
         for (int j = counter-1; j >= 0; j--) {
-          if (printOn) sb.append(String.format(
-              "\n%-2s|%-3s|%-4s|%-4s|%-4s", j, bitString.charAt(j), "", "", ""));
+          //the xi column repeats the bits from the most significant end, as in the sample output
+          trace.record(TraceBuffer.PRIME_SKIPPED, j, x >>> (numBits - 1 - j) & 1);
         }
-        if (printOn) sb.append(String.format("\n%d is not a prime because %d^2 mod %d = 1 and %d != 1 "
-            + "and %d != %d - 1\n\n", n, z, n, z, z, n));
+        trace.record(TraceBuffer.PRIME_NONTRIVIAL_ROOT, n, z);
         return false;
       }
-      if (bitString.charAt(i) == '1') {
-        y = a * y % n;
+      int ySquared = y;
+      if (bit == 1) {
+        y = ModularArithmetic.multiply(a, y, n);
       }
-      if (printOn) sb.append(String.format("%-4s\n", y));
+      trace.record(TraceBuffer.PRIME_STEP, counter, bit, z, ySquared, y);
     }
     if (y != 1) {
-      if (printOn) sb.append(String.format("%d is not a prime because %d^%d mod %d != 1\n\n",
-          n, a, x, n));
+      trace.record(TraceBuffer.PRIME_FERMAT_FAILED, n, a, x);
       return false;
     }
-    if (printOn) sb.append(String.format("%d is perhaps a prime\n\n", n));
+    trace.record(TraceBuffer.PRIME_PASSED, n);
     return true;
   }
   
+  /**
+   * Determines whether a number is prime or not using Montgomery multiplication, for candidates
+   * beyond the int range. Produces the same answer as {@link #isPerhapsPrime(int, int)}.
+   * @param mont Montgomery context for the candidate n = x + 1
+   * @param a randomly chosen value between 0 < a < n.
+   * @param x x = n - 1; where n is the candidate being tested
+   * @return True if n is a possible prime otherwise false.
+   */
+  protected static boolean isPerhapsPrime(Montgomery mont, long a, long x) {
+    long one = mont.one();
+    long minusOne = mont.getModulus() - one;
+    long base = mont.toMontgomery(a);
+    long y = one;
+    for (int i = 63 - Long.numberOfLeadingZeros(x); i >= 0; i--) {
+      long z = y;
+      y = mont.multiply(y, y);
+      if (y == one && z != one && z != minusOne) {
+        return false;
+      }
+      if ((x >>> i & 1) != 0) {
+        y = mont.multiply(base, y);
+      }
+    }
+    return y == one;
+  }
+  
   /**
    * Returns a uniformly distributed random number in the following range:
    * 0 < randomNumber < upperBound
+   * @param ctx The state of the current run.
    * @param upperBound - upper bound (exclusive)
    * @return randomNumber - poitive integer between 0 (exclusive) and upperBound (exclusive)
    */
-  protected static int getRandomNumberForPrimalityTest(int upperBound) {
-    return randGen.nextInt(upperBound - 1) + 1;
+  protected static int getRandomNumberForPrimalityTest(RunContext ctx, int upperBound) {
+    return ctx.randGen.nextInt(upperBound - 1) + 1;
   }
   
   /**
-   * Appends random number data to the global StringBuilder.
+   * Appends random number data to the StringBuilder of the run.
+   * @param ctx The state of the current run.
    */
-  protected static void printRandomNumbers() {
+  protected static void printRandomNumbers(RunContext ctx) {
+    StringBuilder sb = ctx.sb;
     int[] randomBits = new int[NUM_RANDOM_BITS];
     sb.append("line:143\n");
     for (int i = NUM_RANDOM_BITS; i > 0 ; i--) {
-      int randNum = randGen.nextInt();
+      int randNum = ctx.randGen.nextInt();
       int randBit = getLeastSignificantBit(randNum);
       randomBits[i-1] = randBit;
       String binaryString = getBinaryString(randNum, 32);
@@ -519,14 +925,50 @@ public class RSASystem {
    * @return Binary representation of the input number padded to the specified length.
    */
   protected static String getBinaryString(int number, int strLength) {
-    return String.format("%" + strLength + "s", Integer.toBinaryString(number)).replace(' ', '0');
+    StringBuilder bitStr = new StringBuilder(Math.max(strLength, Integer.SIZE));
+    appendBinaryString(bitStr, number, strLength);
+    return bitStr.toString();
+  }
+  
+  /**
+   * Appends the binary representation of the input number padded to the specified length. The
+   * representation is never cut short, so numbers with more bits produce more characters.
+   * @param bitStr The StringBuilder the characters are appended to.
+   * @param number The number being converted.
+   * @param strLength The padded length of the appended characters.
+   */
+  protected static void appendBinaryString(StringBuilder bitStr, int number, int strLength) {
+    int numBits = getBitLength(number);
+    for (int i = numBits; i < strLength; i++) {
+      bitStr.append('0');
+    }
+    for (int i = numBits - 1; i >= 0; i--) {
+      bitStr.append((number >>> i & 1) == 1 ? '1' : '0');
+    }
+  }
+  
+  /**
+   * Returns the number of bits in the binary representation of a number, which is the length of
+   * Integer.toBinaryString(number).
+   * @param number The number, treated as unsigned.
+   * @return The position of the most significant set bit plus one, or one if number is zero.
+   */
+  protected static int getBitLength(int number) {
+    return Math.max(Integer.SIZE - Integer.numberOfLeadingZeros(number), 1);
   }
   
   /**
-   * Sets a seed for the random number generator that is used.
+   * Sets a seed for the random number streams of the runs.
    * @param seed Seed value for the random number generator.
    */
   protected static void setRandGenSeed(long seed) {
-    randGen.setSeed(seed);
+    randomStreams = RandomStreams.seeded(seed);
+  }
+  
+  /**
+   * Makes the runs draw their random numbers from SecureRandom instead of a seeded stream.
+   */
+  protected static void useSecureRandom() {
+    randomStreams = RandomStreams.secure();
   }
 }
@@ -0,0 +1,177 @@
+package main;
+
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.SplittableRandom;
+
+/**
+ * A family of independent random number streams. In seeded mode, stream i is a SplittableRandom
+ * whose seed is derived from the root seed and i alone, so the numbers a run draws depend only on
+ * its index and not on how runs are spread over threads. In secure mode every stream draws from
+ * its own SecureRandom in bulk. Streams are java.util.Random instances so they can be passed to
+ * BigInteger and the key generators, but a stream must not be shared between threads.
+ */
+public class RandomStreams {
+
+  private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+  private final long seed;
+  private final boolean secure;
+
+  private RandomStreams(long seed, boolean secure) {
+    this.seed = seed;
+    this.secure = secure;
+  }
+
+  /**
+   * @param seed The root seed of the streams.
+   * @return Reproducible streams derived from the seed.
+   */
+  public static RandomStreams seeded(long seed) {
+    return new RandomStreams(seed, false);
+  }
+
+  /**
+   * @return Streams backed by SecureRandom, for keys that are actually used.
+   */
+  public static RandomStreams secure() {
+    return new RandomStreams(0, true);
+  }
+
+  public boolean isSecure() {
+    return secure;
+  }
+
+  /**
+   * Returns the stream with the given index. Calling this twice with the same index of seeded
+   * streams returns two generators that produce the same numbers.
+   * @param index The index of the stream, for example the number of the run.
+   * @return The random number generator of the stream.
+   */
+  public Random stream(long index) {
+    if (secure) {
+      return new BufferedSecureRandom(new SecureRandom());
+    }
+    return new SplittableRandomAdapter(new SplittableRandom(mix64(seed + index * GOLDEN_GAMMA)));
+  }
+
+  /**
+   * Returns a family of streams that draws different numbers than this one, for work that must
+   * not share its streams with the runs. Secure streams are returned as they are.
+   * @param salt Identifies the family; different salts give unrelated families.
+   * @return The derived streams.
+   */
+  public RandomStreams derive(long salt) {
+    if (secure) {
+      return this;
+    }
+    return new RandomStreams(mix64(seed ^ mix64(salt + GOLDEN_GAMMA)), false);
+  }
+
+  /**
+   * The finalizer of SplitMix64; spreads consecutive inputs over the whole range.
+   */
+  private static long mix64(long z) {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  /**
+   * Exposes a SplittableRandom through the java.util.Random API.
+   */
+  static class SplittableRandomAdapter extends Random {
+    private static final long serialVersionUID = 1L;
+
+    private final SplittableRandom source;
+
+    SplittableRandomAdapter(SplittableRandom source) {
+      this.source = source;
+    }
+
+    @Override
+    protected int next(int bits) {
+      return (int) (source.nextLong() >>> (64 - bits));
+    }
+
+    @Override
+    public int nextInt() {
+      return source.nextInt();
+    }
+
+    @Override
+    public int nextInt(int bound) {
+      return source.nextInt(bound);
+    }
+
+    @Override
+    public long nextLong() {
+      return source.nextLong();
+    }
+
+    @Override
+    public double nextDouble() {
+      return source.nextDouble();
+    }
+
+    @Override
+    public synchronized void setSeed(long seed) {
+      //called by the Random constructor; the stream is fixed by its SplittableRandom
+      if (source != null) {
+        throw new UnsupportedOperationException("The seed of a stream cannot be changed");
+      }
+    }
+  }
+
+  /**
+   * Serves random numbers from a buffer that is refilled from a SecureRandom in bulk, which is
+   * much cheaper than one SecureRandom call per number.
+   */
+  static class BufferedSecureRandom extends Random {
+    private static final long serialVersionUID = 1L;
+    private static final int BUFFER_SIZE = 4096;
+
+    private final SecureRandom source;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = BUFFER_SIZE;
+
+    BufferedSecureRandom(SecureRandom source) {
+      this.source = source;
+    }
+
+    @Override
+    protected int next(int bits) {
+      if (position > BUFFER_SIZE - 4) {
+        refill();
+      }
+      int res = (buffer[position] & 0xFF) << 24 | (buffer[position + 1] & 0xFF) << 16
+          | (buffer[position + 2] & 0xFF) << 8 | (buffer[position + 3] & 0xFF);
+      position += 4;
+      return res >>> (32 - bits);
+    }
+
+    @Override
+    public void nextBytes(byte[] bytes) {
+      int offset = 0;
+      while (offset < bytes.length) {
+        if (position == BUFFER_SIZE) {
+          refill();
+        }
+        int count = Math.min(bytes.length - offset, BUFFER_SIZE - position);
+        System.arraycopy(buffer, position, bytes, offset, count);
+        position += count;
+        offset += count;
+      }
+    }
+
+    @Override
+    public synchronized void setSeed(long seed) {
+      //called by the Random constructor; seeding is left to the SecureRandom
+    }
+
+    private void refill() {
+      source.nextBytes(buffer);
+      position = 0;
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package main;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * The output of one run, made of sections that are computed and written one at a time. Only the
+ * selected sections are computed, and each one is written out as soon as it is complete, so the
+ * memory used does not grow with the report. Sections that need the keys generate them silently
+ * if the keys section is not selected.
+ */
+public class Report {
+
+  /**
+   * The sections of the report in the order they are written.
+   */
+  public enum Section {
+    RANDOM_NUMBERS {
+      @Override
+      void print(RunContext ctx) {
+        RSASystem.printRandomNumbers(ctx);
+      }
+    },
+    NOT_A_PRIME {
+      @Override
+      void print(RunContext ctx) {
+        RSASystem.printNotAPrime(ctx);
+      }
+    },
+    PERHAPS_A_PRIME {
+      @Override
+      void print(RunContext ctx) {
+        RSASystem.printPerhapsAPrime(ctx);
+      }
+    },
+    KEYS {
+      @Override
+      void print(RunContext ctx) {
+        RSASystem.printPrimesAndKeyPairs(ctx);
+      }
+    },
+    CERTIFICATE {
+      @Override
+      void print(RunContext ctx) {
+        RSASystem.printDigitalCertificate(ctx);
+      }
+    },
+    AUTHENTICATION {
+      @Override
+      void print(RunContext ctx) {
+        RSASystem.printAuthentication(ctx);
+      }
+    };
+
+    /**
+     * Appends the section to the StringBuilder of the run.
+     * @param ctx The state of the current run.
+     */
+    abstract void print(RunContext ctx);
+  }
+
+  private final RunContext ctx;
+  private final Set<Section> sections;
+
+  /**
+   * Creates a report with every section.
+   * @param ctx The state of the run the report is computed in.
+   */
+  public Report(RunContext ctx) {
+    this(ctx, EnumSet.allOf(Section.class));
+  }
+
+  /**
+   * @param ctx The state of the run the report is computed in.
+   * @param sections The sections to compute.
+   */
+  public Report(RunContext ctx, Set<Section> sections) {
+    this.ctx = ctx;
+    this.sections = EnumSet.noneOf(Section.class);
+    this.sections.addAll(sections);
+  }
+
+  /**
+   * Computes the selected sections and writes each one as soon as it is complete. The writer is
+   * flushed but not closed.
+   * @param out The writer the report is written to.
+   * @throws IOException If writing fails.
+   */
+  public void writeTo(Writer out) throws IOException {
+    StringBuilder sb = ctx.sb;
+    for (Section section : Section.values()) {
+      if (!sections.contains(section)) {
+        continue;
+      }
+      if (section.compareTo(Section.KEYS) > 0 && ctx.alicePairs == null) {
+        RSASystem.generateKeys(ctx);
+      }
+      section.print(ctx);
+      out.append(sb);
+      sb.setLength(0);
+    }
+    out.flush();
+  }
+
+  /**
+   * Computes the selected sections and writes each one as soon as it is complete. The channel is
+   * not closed.
+   * @param channel The channel the report is written to.
+   * @throws IOException If writing fails.
+   */
+  public void writeTo(WritableByteChannel channel) throws IOException {
+    writeTo(Channels.newWriter(channel, "UTF-8"));
+  }
+}
@@ -0,0 +1,94 @@
+package main;
+
+import java.util.Random;
+
+/**
+ * The state of one run of {@link RSASystem#printAll(RunContext)}: the output being built, the
+ * keys generated for Alice and Trent and the random number generator. Every run has its own
+ * context, so runs on different threads do not share any mutable state.
+ */
+public class RunContext {
+
+  final Random randGen;
+  final StringBuilder sb = new StringBuilder();
+  int[] alicePairs;
+  int[] trentPairs;
+  RSAPrivateCrtKey aliceCrtKey;
+  RSAPrivateCrtKey trentCrtKey;
+  private final TraceBuffer trace = new TraceBuffer();
+  private TraceListener traceListener;
+  //when set, private-key operations use the CRT form of the key
+  boolean crtSigning = true;
+  //fixed public exponent of the int keys, or zero to search for the smallest one
+  int publicExponent;
+
+  /**
+   * Creates the context for a run.
+   * @param randGen Random number generator used only by this run.
+   */
+  public RunContext(Random randGen) {
+    this.randGen = randGen;
+    //by default the tables are part of the output
+    this.traceListener = new TraceListener() {
+      @Override
+      public void onTrace(TraceBuffer trace) {
+        trace.renderTo(sb);
+      }
+    };
+  }
+
+  /**
+   * @return The output appended by the run so far.
+   */
+  public String getOutput() {
+    return sb.toString();
+  }
+
+  /**
+   * Selects how private-key operations are computed.
+   * @param useCrt True to use the CRT form of the key, false to exponentiate modulo n.
+   */
+  public void setCrtSigning(boolean useCrt) {
+    this.crtSigning = useCrt;
+  }
+
+  /**
+   * Fixes the public exponent of the keys generated by the run. Primes p with p = 1 mod e are
+   * rejected, so e is invertible and the extended Euclidean algorithm runs once per key. By
+   * default e is searched for from 3 upwards, as in the sample output.
+   * @param e An odd prime, or zero to search for e.
+   */
+  public void setPublicExponent(int e) {
+    if (e != 0 && (e < 3 || !MillerRabin.isPrime(e))) {
+      throw new IllegalArgumentException("The public exponent must be an odd prime");
+    }
+    this.publicExponent = e;
+  }
+
+  /**
+   * Selects who receives the traces of the computations of the run.
+   * @param listener The listener, or null to run every computation untraced.
+   */
+  public void setTraceListener(TraceListener listener) {
+    this.traceListener = listener;
+  }
+
+  /**
+   * @return The empty buffer to record a trace into, or null if nobody listens.
+   */
+  TraceBuffer startTrace() {
+    if (traceListener == null) {
+      return null;
+    }
+    trace.clear();
+    return trace;
+  }
+
+  /**
+   * Hands the recorded trace to the listener.
+   */
+  void publishTrace() {
+    traceListener.onTrace(trace);
+    trace.clear();
+  }
+}
@@ -0,0 +1,235 @@
+package main;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Checks signatures s of hashes h under public keys (e, n), that is whether s^e mod n = h, as
+ * printAuthentication and printDigitalCertificate do. Many signatures can be checked in one call;
+ * the exponentiations of a call are done together by {@link BatchExponentiation}, which sets up
+ * each modulus once for consecutive signatures under the same key.
+ * The results of recent checks are cached, so a certificate that is checked again is not
+ * exponentiated again. The cache is split into segments with a lock each so that concurrent
+ * checks rarely wait for each other; every segment evicts its least recently used entry once it
+ * is full. The numbers of hits, misses and evictions are counted. Instances are thread-safe.
+ */
+public class SignatureVerifier {
+
+  public static final int DEFAULT_CAPACITY = 64 * 1024;
+  private static final int NUM_SEGMENTS = 16;
+
+  private final Segment[] segments = new Segment[NUM_SEGMENTS];
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  public SignatureVerifier() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Creates a verifier.
+   * @param capacity The number of results that are cached, capacity > 0
+   */
+  public SignatureVerifier(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("The capacity must be a positive integer value");
+    }
+    int segmentCapacity = (capacity + NUM_SEGMENTS - 1) / NUM_SEGMENTS;
+    for (int i = 0; i < NUM_SEGMENTS; i++) {
+      segments[i] = new Segment(segmentCapacity, evictions);
+    }
+  }
+
+  /**
+   * Checks one signature.
+   * @param hash The hash that was signed.
+   * @param signature The signature.
+   * @param e The public exponent of the signer.
+   * @param n The modulus of the signer.
+   * @return True if signature^e mod n = hash
+   */
+  public boolean verify(int hash, int signature, int e, int n) {
+    return verifyAll(new int[] { hash }, new int[] { signature }, new int[] { e },
+        new int[] { n })[0];
+  }
+
+  /**
+   * Checks a certificate signed by Trent.
+   * @param certificate The certificate.
+   * @param trentE The public exponent of Trent.
+   * @param trentN The modulus of Trent.
+   * @return True if the hash matches the certificate and the signature matches the hash.
+   */
+  public boolean verify(Certificate certificate, int trentE, int trentN) {
+    int hash = RSASystem.hashCertificate(new XorFoldHash(), certificate.getName(),
+        certificate.getN(), certificate.getE());
+    return hash == certificate.getHash()
+        && verify(hash, certificate.getSignature(), trentE, trentN);
+  }
+
+  /**
+   * Checks many signatures. Cached results are used as they are; the other signatures are
+   * exponentiated together and their results are cached.
+   * @param hashes The hashes that were signed.
+   * @param signatures The signatures.
+   * @param exponents The public exponent of the signer of each signature, each at least zero.
+   * @param moduli The modulus of the signer of each signature, each greater than zero.
+   * @return True at index i if signature i matches hash i.
+   */
+  public boolean[] verifyAll(int[] hashes, int[] signatures, int[] exponents, int[] moduli) {
+    int count = hashes.length;
+    if (signatures.length != count || exponents.length != count || moduli.length != count) {
+      throw new IllegalArgumentException("The arrays must have the same length");
+    }
+    boolean[] res = new boolean[count];
+    Key[] keys = new Key[count];
+    //the signatures that are not cached, packed to the front
+    int[] missing = new int[count];
+    int numMissing = 0;
+    for (int i = 0; i < count; i++) {
+      keys[i] = new Key(hashes[i], signatures[i], exponents[i], moduli[i]);
+      Boolean cached = segmentOf(keys[i]).get(keys[i]);
+      if (cached != null) {
+        hits.increment();
+        res[i] = cached;
+      } else {
+        misses.increment();
+        missing[numMissing++] = i;
+      }
+    }
+    if (numMissing == 0) {
+      return res;
+    }
+    int[] bases = new int[numMissing];
+    int[] batchExponents = new int[numMissing];
+    int[] batchModuli = new int[numMissing];
+    int[] results = new int[numMissing];
+    for (int j = 0; j < numMissing; j++) {
+      int i = missing[j];
+      bases[j] = signatures[i];
+      batchExponents[j] = exponents[i];
+      batchModuli[j] = moduli[i];
+    }
+    BatchExponentiation.pow(bases, batchExponents, batchModuli, results);
+    for (int j = 0; j < numMissing; j++) {
+      int i = missing[j];
+      res[i] = results[j] == hashes[i];
+      segmentOf(keys[i]).put(keys[i], res[i]);
+    }
+    return res;
+  }
+
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  public long getEvictionCount() {
+    return evictions.sum();
+  }
+
+  /**
+   * @return The share of checks answered from the cache, or zero if nothing was checked.
+   */
+  public double getHitRate() {
+    long numHits = hits.sum();
+    long total = numHits + misses.sum();
+    return total == 0 ? 0 : (double) numHits / total;
+  }
+
+  /**
+   * @return The number of results currently cached.
+   */
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      size += segment.size();
+    }
+    return size;
+  }
+
+  /**
+   * Empties the cache and resets the counters.
+   */
+  public void clear() {
+    for (Segment segment : segments) {
+      segment.clear();
+    }
+    hits.reset();
+    misses.reset();
+    evictions.reset();
+  }
+
+  private Segment segmentOf(Key key) {
+    int h = key.hashCode();
+    return segments[(h ^ h >>> 16) & (NUM_SEGMENTS - 1)];
+  }
+
+  /**
+   * One part of the cache, in least recently used order.
+   */
+  private static final class Segment {
+    private final LinkedHashMap<Key, Boolean> entries;
+
+    Segment(final int capacity, final LongAdder evictions) {
+      this.entries = new LinkedHashMap<Key, Boolean>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+          if (size() > capacity) {
+            evictions.increment();
+            return true;
+          }
+          return false;
+        }
+      };
+    }
+
+    synchronized Boolean get(Key key) {
+      return entries.get(key);
+    }
+
+    synchronized void put(Key key, boolean valid) {
+      entries.put(key, valid);
+    }
+
+    synchronized int size() {
+      return entries.size();
+    }
+
+    synchronized void clear() {
+      entries.clear();
+    }
+  }
+
+  private static final class Key {
+    private final long signed;
+    private final long publicKey;
+
+    Key(int hash, int signature, int e, int n) {
+      this.signed = (long) hash << 32 | signature & 0xFFFFFFFFL;
+      this.publicKey = (long) e << 32 | n & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return signed == other.signed && publicKey == other.publicKey;
+    }
+
+    @Override
+    public int hashCode() {
+      long h = signed * 0x9E3779B97F4A7C15L + publicKey;
+      return (int) (h ^ h >>> 32);
+    }
+  }
+}
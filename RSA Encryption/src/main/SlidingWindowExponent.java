@@ -0,0 +1,169 @@
+package main;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * An exponent recoded for sliding-window exponentiation. The exponent is split into odd windows
+ * of at most getWindowSize() bits separated by runs of zeros, so the exponentiation needs one
+ * multiplication per window instead of one per set bit. The recoding does not depend on the
+ * modulus or the base and can be reused for every exponentiation with the same exponent.
+ */
+public class SlidingWindowExponent {
+
+  //largest exponent size in bits for window sizes 1, 2, 3, ...
+  private static final int[] WINDOW_SIZE_THRESHOLDS = { 7, 25, 81, 241, 673, 1793 };
+
+  private final int windowSize;
+  //odd window values from the most significant end
+  private final int[] windows;
+  //squarings to do before multiplying in the window with the same index
+  private final int[] squarings;
+  //squarings after the last window, one per trailing zero bit
+  private final int trailingSquarings;
+
+  private SlidingWindowExponent(int windowSize, int[] windows, int[] squarings,
+      int trailingSquarings) {
+    this.windowSize = windowSize;
+    this.windows = windows;
+    this.squarings = squarings;
+    this.trailingSquarings = trailingSquarings;
+  }
+
+  /**
+   * Picks the window size for an exponent. Larger windows need fewer multiplications but a
+   * bigger table of odd powers, which only pays off for long exponents.
+   * @param bits The length of the exponent in bits.
+   * @return The window size in bits.
+   */
+  public static int chooseWindowSize(int bits) {
+    int k = 1;
+    while (k <= WINDOW_SIZE_THRESHOLDS.length && bits > WINDOW_SIZE_THRESHOLDS[k - 1]) {
+      k++;
+    }
+    return k;
+  }
+
+  /**
+   * Recodes an exponent.
+   * @param x The exponent, x >= 0
+   * @return The recoded exponent.
+   */
+  public static SlidingWindowExponent recode(long x) {
+    return recode(BigInteger.valueOf(x));
+  }
+
+  /**
+   * Recodes an exponent.
+   * @param x The exponent, x >= 0
+   * @return The recoded exponent.
+   */
+  public static SlidingWindowExponent recode(BigInteger x) {
+    int bits = x.bitLength();
+    int k = chooseWindowSize(bits);
+    int[] windows = new int[bits];
+    int[] squarings = new int[bits];
+    int count = 0;
+    int pendingSquarings = 0;
+    int i = bits - 1;
+    while (i >= 0) {
+      if (!x.testBit(i)) {
+        pendingSquarings++;
+        i--;
+        continue;
+      }
+      //the window ends on the lowest set bit within reach so that its value is odd
+      int j = Math.max(i - k + 1, 0);
+      while (!x.testBit(j)) {
+        j++;
+      }
+      int value = 0;
+      for (int b = i; b >= j; b--) {
+        value = value << 1 | (x.testBit(b) ? 1 : 0);
+      }
+      windows[count] = value;
+      squarings[count] = pendingSquarings + i - j + 1;
+      count++;
+      pendingSquarings = 0;
+      i = j - 1;
+    }
+    return new SlidingWindowExponent(k, Arrays.copyOf(windows, count),
+        Arrays.copyOf(squarings, count), pendingSquarings);
+  }
+
+  public int getWindowSize() {
+    return windowSize;
+  }
+
+  /**
+   * @return The number of multiplications by a table entry, excluding the table setup.
+   */
+  public int getNumMultiplications() {
+    return Math.max(windows.length - 1, 0);
+  }
+
+  /**
+   * Computes a^x mod n for the recoded exponent x.
+   * @param mont Montgomery context for the modulus n.
+   * @param a The base, a >= 0
+   * @return The value of the modular exponentiation computation
+   */
+  public long pow(Montgomery mont, long a) {
+    if (windows.length == 0) {
+      return mont.fromMontgomery(mont.one());
+    }
+    long[] table = new long[1 << (windowSize - 1)];
+    table[0] = mont.toMontgomery(a);
+    if (table.length > 1) {
+      long aSquared = mont.multiply(table[0], table[0]);
+      for (int i = 1; i < table.length; i++) {
+        table[i] = mont.multiply(table[i - 1], aSquared);
+      }
+    }
+    long y = table[windows[0] >>> 1];
+    for (int w = 1; w < windows.length; w++) {
+      for (int s = squarings[w]; s > 0; s--) {
+        y = mont.multiply(y, y);
+      }
+      y = mont.multiply(y, table[windows[w] >>> 1]);
+    }
+    for (int s = trailingSquarings; s > 0; s--) {
+      y = mont.multiply(y, y);
+    }
+    return mont.fromMontgomery(y);
+  }
+
+  /**
+   * Computes a^x mod n for the recoded exponent x.
+   * @param mont Montgomery context for the modulus n.
+   * @param a The base, a >= 0
+   * @return The value of the modular exponentiation computation
+   */
+  public BigInteger pow(MultiLimbMontgomery mont, BigInteger a) {
+    if (windows.length == 0) {
+      return BigInteger.ONE.mod(mont.getModulus());
+    }
+    int[] scratch = new int[mont.getNumLimbs() + 2];
+    int[][] table = new int[1 << (windowSize - 1)][];
+    table[0] = mont.toMontgomery(a);
+    if (table.length > 1) {
+      int[] aSquared = new int[mont.getNumLimbs()];
+      mont.multiply(table[0], table[0], aSquared, scratch);
+      for (int i = 1; i < table.length; i++) {
+        table[i] = new int[mont.getNumLimbs()];
+        mont.multiply(table[i - 1], aSquared, table[i], scratch);
+      }
+    }
+    int[] y = table[windows[0] >>> 1].clone();
+    for (int w = 1; w < windows.length; w++) {
+      for (int s = squarings[w]; s > 0; s--) {
+        mont.multiply(y, y, y, scratch);
+      }
+      mont.multiply(y, table[windows[w] >>> 1], y, scratch);
+    }
+    for (int s = trailingSquarings; s > 0; s--) {
+      mont.multiply(y, y, y, scratch);
+    }
+    return mont.fromMontgomery(y);
+  }
+}
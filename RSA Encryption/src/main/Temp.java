@@ -16,13 +16,13 @@ public class Temp {
       System.out.print(counter + " ");
       System.out.print(bitString.charAt(i) + " ");
       System.out.print(z + " ");
-      y = y * y % n;
+      y = ModularArithmetic.multiply(y, y, n);
       System.out.print(y + " ");
       if (y == 1 && z != 1 && z != n - 1) {
         return false;
       }
       if (bitString.charAt(i) == '1') {
-        y = a * y % n;
+        y = ModularArithmetic.multiply(a, y, n);
       }
       System.out.print(y + "\n");
     }
@@ -33,15 +33,7 @@ public class Temp {
   }
   
   public static int fastExponentiation(int a, int x, int n) {
-    int y = 1;
-    String bitString = Integer.toBinaryString(x);
-    for (int i = 0; i < bitString.length(); i++) {
-      y = y * y % n;
-      if (bitString.charAt(i) == '1') {
-        y = a * y % n;
-      }
-    }
-    return y;
+    return ModularArithmetic.pow(a, x, n);
   }
   
   public static int fastExponentiation2(int a, int x) {
@@ -0,0 +1,205 @@
+package main;
+
+import java.util.Arrays;
+
+/**
+ * Records the steps of the traced computations as fixed-size records of ints, so the loops being
+ * traced only store a few numbers per step. The records are formatted into the tables of the
+ * output by {@link #renderTo(StringBuilder)}, which is only called when someone reads them. The
+ * buffer doubles in size when it is full, so no record is lost; it keeps its size when it is
+ * reused by calling {@link #clear()}. It is not thread-safe.
+ */
+public class TraceBuffer {
+
+  public static final int DEFAULT_CAPACITY = 256;
+
+  //header of the fast exponentiation table
+  public static final int EXPO_HEADER = 1;
+  //{i, xi, y after squaring, y}
+  public static final int EXPO_STEP = 2;
+  //{n, a}
+  public static final int PRIME_HEADER = 3;
+  //{i, xi, z, y after squaring, y}
+  public static final int PRIME_STEP = 4;
+  //{i, xi, z, y after squaring}; a row that ends at a nontrivial square root of one
+  public static final int PRIME_ROOT_STEP = 5;
+  //{i, xi}; a row that was not computed
+  public static final int PRIME_SKIPPED = 6;
+  //{n, z}
+  public static final int PRIME_NONTRIVIAL_ROOT = 7;
+  //{n, a, x}
+  public static final int PRIME_FERMAT_FAILED = 8;
+  //{n}
+  public static final int PRIME_PASSED = 9;
+  //header of the extended Euclidean algorithm table
+  public static final int EEA_HEADER = 10;
+  //{j, qi, r, ri+1, ri+2, si, ti}
+  public static final int EEA_STEP = 11;
+  //{j, r, si, ti}
+  public static final int EEA_LAST = 12;
+  //{e}; the public exponent being tried
+  public static final int KEY_EXPONENT = 13;
+
+  //kind followed by up to seven fields
+  private static final int RECORD_SIZE = 8;
+
+  private int[] records;
+  private int size;
+
+  public TraceBuffer() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param capacity The number of records the buffer holds before it grows, capacity > 0
+   */
+  public TraceBuffer(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("The capacity must be a positive integer value");
+    }
+    this.records = new int[capacity * RECORD_SIZE];
+  }
+
+  public void record(int kind) {
+    add(kind, 0, 0, 0, 0, 0, 0, 0);
+  }
+
+  public void record(int kind, int f1) {
+    add(kind, f1, 0, 0, 0, 0, 0, 0);
+  }
+
+  public void record(int kind, int f1, int f2) {
+    add(kind, f1, f2, 0, 0, 0, 0, 0);
+  }
+
+  public void record(int kind, int f1, int f2, int f3) {
+    add(kind, f1, f2, f3, 0, 0, 0, 0);
+  }
+
+  public void record(int kind, int f1, int f2, int f3, int f4) {
+    add(kind, f1, f2, f3, f4, 0, 0, 0);
+  }
+
+  public void record(int kind, int f1, int f2, int f3, int f4, int f5) {
+    add(kind, f1, f2, f3, f4, f5, 0, 0);
+  }
+
+  public void record(int kind, int f1, int f2, int f3, int f4, int f5, int f6, int f7) {
+    add(kind, f1, f2, f3, f4, f5, f6, f7);
+  }
+
+  /**
+   * @return The number of records in the buffer.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @param index The index of the record, in the order recorded.
+   * @return The kind of the record.
+   */
+  public int getKind(int index) {
+    return records[offset(index)];
+  }
+
+  /**
+   * @param index The index of the record, in the order recorded.
+   * @param field The number of the field, between 1 and 7.
+   * @return The value of the field.
+   */
+  public int getField(int index, int field) {
+    return records[offset(index) + field];
+  }
+
+  /**
+   * Removes every record.
+   */
+  public void clear() {
+    size = 0;
+  }
+
+  /**
+   * Formats the records as the tables of the output.
+   * @param out The StringBuilder the tables are appended to.
+   */
+  public void renderTo(StringBuilder out) {
+    for (int i = 0; i < size; i++) {
+      int r = offset(i);
+      int f1 = records[r + 1], f2 = records[r + 2], f3 = records[r + 3], f4 = records[r + 4],
+          f5 = records[r + 5], f6 = records[r + 6], f7 = records[r + 7];
+      switch (records[r]) {
+        case EXPO_HEADER:
+          out.append(String.format("%-2s|%-3s|%-6s|%-6s\n", "i", "xi", "y", "y"));
+          break;
+        case EXPO_STEP:
+          out.append(String.format("%-2d|%-3d|%-6d|%-6d\n", f1, f2, f3, f4));
+          break;
+        case PRIME_HEADER:
+          out.append(String.format("n = %d, a = %d\n", f1, f2));
+          out.append(String.format("%-2s|%-3s|%-4s|%-4s|%-4s\n", "i", "xi", "z", "y", "y"));
+          break;
+        case PRIME_STEP:
+          out.append(String.format("%-2d|%-3d|%-4d|%-4d|%-4d\n", f1, f2, f3, f4, f5));
+          break;
+        case PRIME_ROOT_STEP:
+          out.append(String.format("%-2d|%-3d|%-4d|%-4d|", f1, f2, f3, f4));
+          break;
+        case PRIME_SKIPPED:
+          out.append(String.format("\n%-2d|%-3d|%-4s|%-4s|%-4s", f1, f2, "", "", ""));
+          break;
+        case PRIME_NONTRIVIAL_ROOT:
+          out.append(String.format("\n%d is not a prime because %d^2 mod %d = 1 and %d != 1 "
+              + "and %d != %d - 1\n\n", f1, f2, f1, f2, f2, f1));
+          break;
+        case PRIME_FERMAT_FAILED:
+          out.append(String.format("%d is not a prime because %d^%d mod %d != 1\n\n",
+              f1, f2, f3, f1));
+          break;
+        case PRIME_PASSED:
+          out.append(String.format("%d is perhaps a prime\n\n", f1));
+          break;
+        case EEA_HEADER:
+          out.append(String.format(
+              "%-2s|%-7s|%-7s|%-7s|%-7s|%-7s|%-7s\n", "j", "qi", "r", "ri+1", "ri+2", "si", "ti"));
+          break;
+        case EEA_STEP:
+          out.append(String.format(
+              "%-2d|%-7d|%-7d|%-7d|%-7d|%-7d|%-7d\n", f1, f2, f3, f4, f5, f6, f7));
+          break;
+        case EEA_LAST:
+          out.append(String.format(
+              "%-2d|%-7s|%-7d|%-7s|%-7s|%-7d|%-7d\n", f1, "", f2, "", "", f3, f4));
+          break;
+        case KEY_EXPONENT:
+          out.append(String.format("e = %d\n", f1));
+          break;
+        default:
+          throw new IllegalStateException("Unknown trace record " + records[r]);
+      }
+    }
+  }
+
+  private int offset(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+    return index * RECORD_SIZE;
+  }
+
+  private void add(int kind, int f1, int f2, int f3, int f4, int f5, int f6, int f7) {
+    int r = size * RECORD_SIZE;
+    if (r == records.length) {
+      records = Arrays.copyOf(records, 2 * records.length);
+    }
+    size++;
+    records[r] = kind;
+    records[r + 1] = f1;
+    records[r + 2] = f2;
+    records[r + 3] = f3;
+    records[r + 4] = f4;
+    records[r + 5] = f5;
+    records[r + 6] = f6;
+    records[r + 7] = f7;
+  }
+}
@@ -0,0 +1,14 @@
+package main;
+
+/**
+ * Receives the trace of a computation of a run once the computation has finished.
+ */
+public interface TraceListener {
+
+  /**
+   * Called after a traced computation. The buffer is cleared and reused once this returns, so
+   * records that are needed later have to be rendered or copied.
+   * @param trace The records of the computation.
+   */
+  void onTrace(TraceBuffer trace);
+}
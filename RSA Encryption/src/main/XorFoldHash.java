@@ -0,0 +1,134 @@
+package main;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The hash used for certificates and authentication: the XOR of every byte of the message, so
+ * an N byte message maps to a single byte. Since XOR is associative, the bytes are folded eight
+ * at a time into a long and the eight lanes are only combined in {@link #digest()}. The message
+ * can be passed in any number of chunks. An instance is not thread-safe.
+ */
+public class XorFoldHash {
+
+  private static final int STREAM_BUFFER_SIZE = 8192;
+
+  private long state;
+  private byte[] streamBuffer;
+
+  /**
+   * Adds one byte to the message.
+   * @param b The byte.
+   * @return This hash.
+   */
+  public XorFoldHash update(byte b) {
+    state ^= b & 0xFF;
+    return this;
+  }
+
+  /**
+   * Adds the four bytes of an int to the message, most significant byte first.
+   * @param value The int.
+   * @return This hash.
+   */
+  public XorFoldHash updateInt(int value) {
+    state ^= value & 0xFFFFFFFFL;
+    return this;
+  }
+
+  /**
+   * Adds a range of bytes to the message.
+   * @param bytes The bytes.
+   * @param offset The index of the first byte.
+   * @param length The number of bytes.
+   * @return This hash.
+   */
+  public XorFoldHash update(byte[] bytes, int offset, int length) {
+    int end = offset + length;
+    int i = offset;
+    long acc = state;
+    //the position of a byte within the long does not matter since all lanes are folded together
+    for (; i <= end - 8; i += 8) {
+      acc ^= (bytes[i] & 0xFFL) | (bytes[i + 1] & 0xFFL) << 8 | (bytes[i + 2] & 0xFFL) << 16
+          | (bytes[i + 3] & 0xFFL) << 24 | (bytes[i + 4] & 0xFFL) << 32
+          | (bytes[i + 5] & 0xFFL) << 40 | (bytes[i + 6] & 0xFFL) << 48
+          | (bytes[i + 7] & 0xFFL) << 56;
+    }
+    for (; i < end; i++) {
+      acc ^= bytes[i] & 0xFF;
+    }
+    state = acc;
+    return this;
+  }
+
+  /**
+   * Adds bytes to the message.
+   * @param bytes The bytes.
+   * @return This hash.
+   */
+  public XorFoldHash update(byte[] bytes) {
+    return update(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Adds the remaining bytes of a buffer to the message. The position of the buffer is moved to
+   * its limit.
+   * @param buffer The buffer.
+   * @return This hash.
+   */
+  public XorFoldHash update(ByteBuffer buffer) {
+    if (buffer.hasArray()) {
+      int position = buffer.position();
+      update(buffer.array(), buffer.arrayOffset() + position, buffer.remaining());
+      buffer.position(buffer.limit());
+      return this;
+    }
+    long acc = state;
+    while (buffer.remaining() >= 8) {
+      acc ^= buffer.getLong();
+    }
+    while (buffer.hasRemaining()) {
+      acc ^= buffer.get() & 0xFF;
+    }
+    state = acc;
+    return this;
+  }
+
+  /**
+   * Adds every byte of a stream to the message. The stream is read to its end but not closed.
+   * @param in The stream.
+   * @return This hash.
+   * @throws IOException If reading the stream fails.
+   */
+  public XorFoldHash update(InputStream in) throws IOException {
+    if (streamBuffer == null) {
+      streamBuffer = new byte[STREAM_BUFFER_SIZE];
+    }
+    int read;
+    while ((read = in.read(streamBuffer)) != -1) {
+      update(streamBuffer, 0, read);
+    }
+    return this;
+  }
+
+  /**
+   * Completes the hash and resets this instance for the next message.
+   * @return The hash of the message, between 0 and 255.
+   */
+  public int digest() {
+    long acc = state;
+    acc ^= acc >>> 32;
+    acc ^= acc >>> 16;
+    acc ^= acc >>> 8;
+    state = 0;
+    return (int) acc & 0xFF;
+  }
+
+  /**
+   * Discards the bytes added since the last digest.
+   */
+  public void reset() {
+    state = 0;
+  }
+}
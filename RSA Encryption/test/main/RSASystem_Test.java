@@ -2,7 +2,35 @@ package main;
 
 import static org.junit.Assert.*;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.EnumSet;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.GZIPInputStream;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -24,4 +52,806 @@ public class RSASystem_Test {
     assertEquals(expectedRandBit, RSASystem.getLeastSignificantBit(expectedRandInt));
   }
 
+  @Test
+  public void testGetPrimesAndKeyPairsWithModulusSize() {
+    RSAKeyPair pair = RSASystem.getPrimesAndKeyPairs(new RunContext(testRandGen), 1024);
+    assertEquals(1024, pair.getModulusBits());
+    assertEquals(pair.getN(), pair.getP().multiply(pair.getQ()));
+    BigInteger m = BigInteger.valueOf(42);
+    assertEquals(m, m.modPow(pair.getE(), pair.getN()).modPow(pair.getD(), pair.getN()));
+    assertTrue(RSASystem.getPrimesAndKeyPairs(new RunContext(testRandGen),
+        RSASystem.SMALL_MODULUS_BITS).getModulusBits() <= RSASystem.SMALL_MODULUS_BITS);
+    for (int bits : new int[] { 8, 512, 8192 }) {
+      try {
+        RSASystem.getPrimesAndKeyPairs(new RunContext(testRandGen), bits);
+        fail("A key of " + bits + " bits was generated");
+      } catch (IllegalArgumentException e) {
+        assertTrue(e.getMessage().contains("between 1024 and 4096"));
+      }
+    }
+  }
+
+  @Test
+  public void testCrtSignatureMatchesModPow() {
+    RSAKeyPair pair = new RSAKeyGenerator(1024, 3, testRandGen).generate();
+    BigInteger m = new BigInteger(1000, testRandGen);
+    assertEquals(m.modPow(pair.getD(), pair.getN()), pair.getPrivateCrtKey().sign(m));
+  }
+
+  @Test
+  public void testGetTestedPrimeIsPrime() {
+    for (int i = 0; i < 100; i++) {
+      int p = RSASystem.getTestedPrime(new RunContext(testRandGen));
+      assertTrue(BigInteger.valueOf(p).isProbablePrime(50));
+    }
+    assertFalse(MillerRabin.isPrime(3215031751L));
+    assertTrue(MillerRabin.isPrime(9223372036854775783L));
+  }
+
+  @Test
+  public void testPrimeSieveMarksOnlyComposites() {
+    long start = (testRandGen.nextLong() >>> 24) | (1L << 39) | 1;
+    int window = PrimeSieve.DEFAULT_WINDOW;
+    BitSet composites = PrimeSieve.sieve(BigInteger.valueOf(start), window);
+    long firstPrime = 0;
+    for (int i = 0; i < window; i++) {
+      long candidate = start + 2L * i;
+      if (composites.get(i)) {
+        assertFalse(MillerRabin.isPrime(candidate));
+      } else if (firstPrime == 0 && MillerRabin.isPrime(candidate)) {
+        firstPrime = candidate;
+      }
+    }
+    assertEquals(firstPrime, PrimeSieve.search(BigInteger.valueOf(start), window, 50)
+        .longValue());
+
+    //a prime p = 1 mod e is skipped when e is excluded
+    int e = 65537;
+    long p = 2L * e * (1L << 24) + 1;
+    while (!MillerRabin.isPrime(p)) {
+      p += 2L * e;
+    }
+    long next = p + 2;
+    while (!MillerRabin.isPrime(next)) {
+      next += 2;
+    }
+    assertEquals(p, PrimeSieve.search(BigInteger.valueOf(p), window, 50).longValue());
+    assertEquals(next, PrimeSieve.search(BigInteger.valueOf(p), window, 50, e).longValue());
+    BigInteger prime = PrimeSieve.search(BigInteger.valueOf(start), window, 50, 3);
+    assertEquals(2, prime.mod(BigInteger.valueOf(3)).intValue());
+    assertTrue(MillerRabin.isPrime(prime.longValue()));
+  }
+
+  @Test(timeout = 20000)
+  public void testPrimePoolRefillsAndCounts() throws InterruptedException {
+    int bits = 256;
+    PrimePool pool = new PrimePool(4, 2, testRandGen);
+    try {
+      //the first poll registers the size; a worker may fill the new queue before it is polled
+      int hits = pool.poll(bits) == null ? 0 : 1;
+      assertEquals(1 - hits, pool.getMisses());
+      awaitFull(pool, bits);
+      for (int i = 0; i < 4; i++) {
+        BigInteger p = pool.poll(bits);
+        assertEquals(bits, p.bitLength());
+        assertTrue(p.isProbablePrime(50));
+      }
+      assertEquals(hits + 4, pool.getHits());
+      awaitFull(pool, bits);
+      assertTrue(pool.getProduced() >= 8);
+      assertEquals(0, pool.getFillLevel(512), 0);
+
+      RSAKeyGenerator generator =
+          new RSAKeyGenerator(RSAKeyGenerator.MIN_MODULUS_BITS, testRandGen);
+      generator.setPrimePool(pool);
+      assertNotNull(generator.getTestedPrime(bits));
+      assertEquals(hits + 5, pool.getHits());
+    } finally {
+      pool.shutdown();
+    }
+    //a worker may still add the prime it was testing
+    Thread.sleep(200);
+    long produced = pool.getProduced();
+    while (pool.poll(bits) != null) {
+      //take what is left
+    }
+    Thread.sleep(200);
+    assertEquals(produced, pool.getProduced());
+    assertEquals(0, pool.getFillLevel(bits), 0);
+  }
+
+  private static void awaitFull(PrimePool pool, int bits) throws InterruptedException {
+    while (pool.getFillLevel(bits) < 1) {
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  public void testBinaryStringsMatchIntegerToBinaryString() {
+    int[] numbers = { 0, 1, 2, 5, 127, 4096, Integer.MAX_VALUE, -1, Integer.MIN_VALUE };
+    for (int number : numbers) {
+      String bits = Integer.toBinaryString(number);
+      assertEquals(bits.length(), RSASystem.getBitLength(number));
+      assertEquals(String.format("%32s", bits).replace(' ', '0'),
+          RSASystem.getBinaryString(number, 32));
+    }
+    assertEquals(7, RSASystem.calculateK(200));
+    assertEquals(0, RSASystem.calculateK(1));
+  }
+
+  @Test
+  public void testXorFoldHashMatchesComputeHash() {
+    byte[] message = new byte[37];
+    testRandGen.nextBytes(message);
+    StringBuilder bits = new StringBuilder();
+    for (byte b : message) {
+      bits.append(RSASystem.getBinaryString(b & 0xFF, 8));
+    }
+    XorFoldHash hash = new XorFoldHash();
+    hash.update(message, 0, 20).update(ByteBuffer.wrap(message, 20, 17));
+    assertEquals(RSASystem.computeHash(bits.toString()),
+        RSASystem.getBinaryString(hash.digest(), 8));
+  }
+
+  @Test
+  public void testUntracedRunGeneratesSameKeys() {
+    RunContext traced = new RunContext(new Random(testSeed));
+    RunContext untraced = new RunContext(new Random(testSeed));
+    untraced.setTraceListener(null);
+    RSASystem.printAll(traced);
+    RSASystem.printAll(untraced);
+    assertArrayEquals(traced.alicePairs, untraced.alicePairs);
+    assertArrayEquals(traced.trentPairs, untraced.trentPairs);
+    assertTrue(untraced.getOutput().length() < traced.getOutput().length());
+  }
+
+  @Test
+  public void testReportWritesOnlySelectedSections() throws IOException {
+    RunContext full = new RunContext(new Random(testSeed));
+    RSASystem.printAll(full);
+    StringWriter out = new StringWriter();
+    new Report(new RunContext(new Random(testSeed))).writeTo(out);
+    assertEquals(full.getOutput(), out.toString());
+
+    out = new StringWriter();
+    new Report(new RunContext(new Random(testSeed)), EnumSet.of(Report.Section.CERTIFICATE))
+        .writeTo(out);
+    assertTrue(out.toString().startsWith("\nline:243\n"));
+    assertFalse(out.toString().contains("line:285"));
+  }
+
+  @Test
+  public void testTraceBufferKeepsEveryRecord() {
+    TraceBuffer trace = new TraceBuffer(2);
+    RSASystem.fastExponentiation(trace, 3, Integer.MAX_VALUE, 65521);
+    for (int i = 0; i < 1000; i++) {
+      trace.record(TraceBuffer.KEY_EXPONENT, i);
+    }
+    assertEquals(1 + 31 + 1000, trace.size());
+    assertEquals(TraceBuffer.EXPO_HEADER, trace.getKind(0));
+    assertEquals(999, trace.getField(trace.size() - 1, 1));
+    StringBuilder table = new StringBuilder();
+    trace.renderTo(table);
+    assertTrue(table.toString().startsWith("i |xi |y     |y     \n"));
+    assertTrue(table.toString().endsWith("e = 998\ne = 999\n"));
+    trace.clear();
+    assertEquals(0, trace.size());
+  }
+
+  @Test
+  public void testPackedOutputCanBeReadBack() throws Exception {
+    File directory = Files.createTempDirectory("packed").toFile();
+    OutputPipeline out = new OutputPipeline(directory, true, true, 4);
+    try {
+      for (int i = 1; i <= 10; i++) {
+        out.submit(i, "report " + i + "\n");
+      }
+    } finally {
+      out.close();
+    }
+    assertEquals("report 7\n", OutputPipeline.readPacked(directory, 7));
+    assertNull(OutputPipeline.readPacked(directory, 11));
+
+    //two reports larger than a buffer, written at the same time so their parts interleave
+    StringBuilder[] expected = { new StringBuilder(), new StringBuilder() };
+    for (boolean packed : new boolean[] { true, false }) {
+      File streamed = Files.createTempDirectory("streamed").toFile();
+      out = new OutputPipeline(streamed, packed, !packed, 2);
+      try {
+        Writer[] writers = { out.open(1), out.open(2) };
+        for (int line = 0; line < 20000; line++) {
+          for (int r = 0; r < writers.length; r++) {
+            String text = "report " + (r + 1) + " line " + line + " \u00e9\n";
+            writers[r].write(text);
+            //both passes write the same text
+            if (packed) {
+              expected[r].append(text);
+            }
+          }
+        }
+        for (Writer writer : writers) {
+          writer.close();
+        }
+      } finally {
+        out.close();
+      }
+      for (int r = 0; r < expected.length; r++) {
+        String text = packed ? OutputPipeline.readPacked(streamed, r + 1)
+            : readGzip(new File(streamed, "output" + (r + 1) + ".txt.gz"));
+        assertEquals(expected[r].toString(), text);
+      }
+    }
+
+    //one report of many buffers, most of which the writer thread takes together
+    StringBuilder large = new StringBuilder();
+    while (large.length() < 3 << 20) {
+      large.append("line ").append(large.length()).append('\n');
+    }
+    for (boolean packed : new boolean[] { true, false }) {
+      File directory2 = Files.createTempDirectory("gathered").toFile();
+      out = new OutputPipeline(directory2, packed, false, 64);
+      try {
+        out.submit(1, large);
+        out.submit(2, "report 2\n");
+      } finally {
+        out.close();
+      }
+      assertEquals(large.toString(), packed ? OutputPipeline.readPacked(directory2, 1)
+          : new String(Files.readAllBytes(new File(directory2, "output1.txt").toPath()),
+              StandardCharsets.UTF_8));
+      assertEquals("report 2\n", packed ? OutputPipeline.readPacked(directory2, 2)
+          : new String(Files.readAllBytes(new File(directory2, "output2.txt").toPath()),
+              StandardCharsets.UTF_8));
+    }
+  }
+
+  @Test
+  public void testSeededReportsDoNotDependOnThreads() throws Exception {
+    int numFiles = 12;
+    File single = Files.createTempDirectory("single").toFile();
+    File parallel = Files.createTempDirectory("parallel").toFile();
+    File packed = Files.createTempDirectory("packed").toFile();
+    OutputPipeline[] outs = { new OutputPipeline(single, false, false, 4),
+        new OutputPipeline(parallel, false, false, 4), new OutputPipeline(packed, true, false, 4) };
+    int[] numThreads = { 1, 4, 3 };
+    for (int i = 0; i < outs.length; i++) {
+      //every pass starts from the seed set in setUp
+      try {
+        RSASystem.writeOutputFiles(outs[i], numFiles, numThreads[i]);
+      } finally {
+        outs[i].close();
+      }
+    }
+    for (int i = 1; i <= numFiles; i++) {
+      byte[] expected = Files.readAllBytes(new File(single, "output" + i + ".txt").toPath());
+      assertArrayEquals(expected,
+          Files.readAllBytes(new File(parallel, "output" + i + ".txt").toPath()));
+      assertEquals(new String(expected, StandardCharsets.UTF_8),
+          OutputPipeline.readPacked(packed, i));
+    }
+    //each file has its own stream
+    assertFalse(Arrays.equals(Files.readAllBytes(new File(single, "output1.txt").toPath()),
+        Files.readAllBytes(new File(single, "output2.txt").toPath())));
+  }
+
+  @Test(timeout = 10000)
+  public void testOutputPipelineReportsUnexpectedWriterFailures() throws Exception {
+    //a NUL in the folder name makes the writer thread fail with an InvalidPathException
+    OutputPipeline out = new OutputPipeline(new File("invalid\0folder"), false, false, 1);
+    try {
+      for (int i = 1; i <= 100; i++) {
+        out.submit(i, "report " + i + "\n");
+      }
+      fail("The failure of the writer thread was not reported");
+    } catch (IOException e) {
+      //expected
+    }
+    try {
+      out.close();
+      fail("The failure of the writer thread was not reported");
+    } catch (IOException e) {
+      //expected
+    }
+  }
+
+  private static String readGzip(File file) throws IOException {
+    InputStream in = new GZIPInputStream(new FileInputStream(file));
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] chunk = new byte[4096];
+      int read;
+      while ((read = in.read(chunk)) != -1) {
+        bytes.write(chunk, 0, read);
+      }
+      return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test
+  public void testMetricsCountKeyGeneration() {
+    Metrics.GLOBAL.setEnabled(true);
+    try {
+      Metrics.GLOBAL.reset();
+      RSASystem.getPrimesAndKeyPairs(new RunContext(testRandGen), false);
+      MetricsSnapshot snapshot = Metrics.GLOBAL.snapshot();
+      assertTrue(snapshot.getCandidatesDrawn() >= 2);
+      assertTrue(snapshot.getExponentsTried() >= 1);
+      assertEquals(1, snapshot.getKeyGenerationLatency().getCount());
+      assertTrue(snapshot.getPrimalityRounds() > 0);
+
+      //the rounds of the BigInteger path are counted too
+      Metrics.GLOBAL.reset();
+      RSAKeyGenerator generator = new RSAKeyGenerator(1024, testRandGen);
+      generator.getTestedPrime(512);
+      snapshot = Metrics.GLOBAL.snapshot();
+      assertEquals(MillerRabin.probablePrimeRounds(512, 20) + snapshot.getCandidatesRejected(),
+          snapshot.getPrimalityRounds());
+      assertEquals(2, MillerRabin.probablePrimeRounds(1024, 20));
+    } finally {
+      Metrics.GLOBAL.setEnabled(false);
+    }
+  }
+
+  @Test
+  public void testFixedPublicExponent() {
+    RunContext ctx = new RunContext(testRandGen);
+    ctx.setPublicExponent(3);
+    int[] pairs = RSASystem.getPrimesAndKeyPairs(ctx, false);
+    int phiOfN = (pairs[0] - 1) * (pairs[1] - 1);
+    assertEquals(3, pairs[3]);
+    assertEquals(1, 3L * pairs[4] % phiOfN);
+
+    RSAKeyGenerator generator = new RSAKeyGenerator(1024, testRandGen);
+    generator.setPublicExponent(RSAKeyGenerator.F4);
+    RSAKeyPair pair = generator.generate();
+    assertEquals(RSAKeyGenerator.F4, pair.getE());
+    BigInteger m = BigInteger.valueOf(42);
+    assertEquals(m, m.modPow(pair.getE(), pair.getN()).modPow(pair.getD(), pair.getN()));
+  }
+
+  @Test
+  public void testModularArithmeticMatchesModPow() {
+    long[] moduli = { 46349, 2147483647L, 4294967296L, 3037000493L * 6, (1L << 62) + 1,
+        Long.MAX_VALUE };
+    for (long n : moduli) {
+      for (int i = 0; i < 50; i++) {
+        long a = testRandGen.nextLong();
+        long x = testRandGen.nextLong() >>> 1;
+        BigInteger bigN = BigInteger.valueOf(n);
+        assertEquals(BigInteger.valueOf(a).modPow(BigInteger.valueOf(x), bigN).longValue(),
+            ModularArithmetic.pow(a, x, n));
+        assertEquals(BigInteger.valueOf(a).multiply(BigInteger.valueOf(x)).mod(bigN).longValue(),
+            ModularArithmetic.multiply(a, x, n));
+      }
+    }
+    assertEquals(BigInteger.valueOf(46340).modPow(BigInteger.valueOf(3), BigInteger.valueOf(65521))
+        .intValue(), RSASystem.fastExponentiation(46340, 3, 65521));
+  }
+
+  @Test
+  public void testMontgomeryMatchesModPow() {
+    long[] moduli = { 3, 65537, 3037000493L * 7, (1L << 61) - 1, Long.MAX_VALUE,
+        testRandGen.nextLong() >>> 1 | 1 };
+    for (long n : moduli) {
+      Montgomery montgomery = new Montgomery(n);
+      BigInteger bigN = BigInteger.valueOf(n);
+      assertEquals(1, montgomery.fromMontgomery(montgomery.one()));
+      for (int i = 0; i < 50; i++) {
+        long a = testRandGen.nextLong() >>> 1;
+        long b = testRandGen.nextLong() >>> 1;
+        long x = testRandGen.nextLong() >>> 1;
+        BigInteger bigA = BigInteger.valueOf(a);
+        assertEquals(bigA.modPow(BigInteger.valueOf(x), bigN).longValue(), montgomery.pow(a, x));
+        assertEquals(bigA.multiply(BigInteger.valueOf(b)).mod(bigN).longValue(),
+            montgomery.fromMontgomery(montgomery.multiply(montgomery.toMontgomery(a),
+                montgomery.toMontgomery(b))));
+      }
+      assertEquals(1, montgomery.pow(n - 1, 0));
+      assertEquals(1, Montgomery.inverseModWord(n) * n);
+    }
+    BigInteger word = BigInteger.ONE.shiftLeft(64);
+    for (int i = 0; i < 50; i++) {
+      long x = testRandGen.nextLong();
+      long y = testRandGen.nextLong();
+      BigInteger product = new BigInteger(1, ByteBuffer.allocate(8).putLong(x).array())
+          .multiply(new BigInteger(1, ByteBuffer.allocate(8).putLong(y).array()));
+      assertEquals(product.divide(word).longValue(), Montgomery.unsignedMultiplyHigh(x, y));
+    }
+
+    //one limb, two limbs with all bits set, and moduli of several limbs
+    BigInteger[] bigModuli = { BigInteger.valueOf(65537), BigInteger.ONE.shiftLeft(64)
+        .subtract(BigInteger.ONE), new BigInteger(512, testRandGen).setBit(511).setBit(0),
+        new BigInteger(1025, testRandGen).setBit(1024).setBit(0) };
+    for (BigInteger n : bigModuli) {
+      MultiLimbMontgomery montgomery = new MultiLimbMontgomery(n);
+      assertEquals((n.bitLength() + 31) / 32, montgomery.getNumLimbs());
+      int[] res = new int[montgomery.getNumLimbs()];
+      int[] scratch = new int[montgomery.getNumLimbs() + 2];
+      for (int i = 0; i < 10; i++) {
+        BigInteger a = new BigInteger(n.bitLength() + 8, testRandGen);
+        BigInteger b = new BigInteger(n.bitLength() - 1, testRandGen);
+        BigInteger x = new BigInteger(n.bitLength(), testRandGen);
+        assertEquals(a.modPow(x, n), montgomery.pow(a, x));
+        montgomery.multiply(montgomery.toMontgomery(a), montgomery.toMontgomery(b), res, scratch);
+        assertEquals(a.multiply(b).mod(n), montgomery.fromMontgomery(res));
+        assertEquals(b, MultiLimbMontgomery.fromLimbs(
+            MultiLimbMontgomery.toLimbs(b, montgomery.getNumLimbs())));
+      }
+      assertEquals(BigInteger.ONE, montgomery.pow(n.subtract(BigInteger.ONE), BigInteger.ZERO));
+    }
+  }
+
+  @Test
+  public void testSlidingWindowExponentMatchesModPow() {
+    long n = (1L << 61) - 1;
+    BigInteger bigN = BigInteger.valueOf(n);
+    BigInteger limbN = new BigInteger(1024, testRandGen).setBit(1023).setBit(0);
+    Montgomery mont = new Montgomery(n);
+    MultiLimbMontgomery limbMont = new MultiLimbMontgomery(limbN);
+    //exponents for every window size, and ones with long runs of zeros
+    int[] sizes = { 0, 1, 2, 7, 8, 25, 26, 81, 82, 241, 242, 673, 674, 1793, 1794, 2048 };
+    for (int bits : sizes) {
+      BigInteger x = bits == 0 ? BigInteger.ZERO
+          : new BigInteger(bits, testRandGen).setBit(bits - 1);
+      BigInteger sparse = BigInteger.ONE.shiftLeft(bits).add(BigInteger.ONE);
+      for (BigInteger exponent : new BigInteger[] { x, sparse, sparse.shiftLeft(5) }) {
+        SlidingWindowExponent recoded = SlidingWindowExponent.recode(exponent);
+        assertEquals(SlidingWindowExponent.chooseWindowSize(exponent.bitLength()),
+            recoded.getWindowSize());
+        long a = testRandGen.nextLong() >>> 1;
+        assertEquals(BigInteger.valueOf(a).modPow(exponent, bigN).longValue(),
+            recoded.pow(mont, a));
+        BigInteger limbA = new BigInteger(1100, testRandGen);
+        assertEquals(limbA.modPow(exponent, limbN), recoded.pow(limbMont, limbA));
+      }
+    }
+    assertEquals(BigInteger.valueOf(3).modPow(BigInteger.valueOf(65537), bigN).longValue(),
+        SlidingWindowExponent.recode(65537).pow(mont, 3));
+  }
+
+  @Test
+  public void testExponentCacheEvictsLeastRecentlyUsedKey() {
+    ExponentCache cache = new ExponentCache(2);
+    BigInteger a = BigInteger.valueOf(42);
+    BigInteger[] x = { BigInteger.valueOf(65537), BigInteger.valueOf(3), BigInteger.valueOf(17) };
+    BigInteger[] n = { BigInteger.valueOf(1000003), BigInteger.valueOf(999983),
+        new BigInteger(200, testRandGen).setBit(0) };
+    for (int i = 0; i < 3; i++) {
+      assertEquals(a.modPow(x[i], n[i]), cache.pow(a, x[i], n[i]));
+    }
+    //key 0 was used least recently
+    assertEquals(2, cache.size());
+    assertFalse(cache.contains(x[0], n[0]));
+    //using key 1 makes key 2 the eldest
+    assertEquals(a.modPow(x[1], n[1]).longValue(),
+        cache.pow(42, x[1].longValue(), n[1].longValue()));
+    assertEquals(a.modPow(x[0], n[0]), cache.pow(a, x[0], n[0]));
+    assertTrue(cache.contains(x[0], n[0]));
+    assertTrue(cache.contains(x[1], n[1]));
+    assertFalse(cache.contains(x[2], n[2]));
+    assertEquals(2, cache.size());
+    cache.clear();
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testModularInverseMatchesModInverse() {
+    long[] moduli = { 2147483646L, 1L << 40, 3037000493L * 6, Long.MAX_VALUE };
+    for (long m : moduli) {
+      BigInteger bigM = BigInteger.valueOf(m);
+      for (int i = 0; i < 50; i++) {
+        BigInteger a = BigInteger.valueOf(testRandGen.nextLong() | 1);
+        if (a.gcd(bigM).equals(BigInteger.ONE)) {
+          assertEquals(a.modInverse(bigM).longValue(), ModularInverse.inverse(a.longValue(), m));
+        }
+      }
+    }
+    assertNull(RSASystem.extendedEuclideanAlgorithm(60, 9));
+
+    //a Mersenne prime for the Montgomery path, a small odd and a large even modulus
+    long[] batchModuli = { (1L << 61) - 1, 65537, 3037000493L * 6 };
+    for (long mod : batchModuli) {
+      long[] values = new long[30];
+      for (int i = 0; i < values.length; i++) {
+        do {
+          values[i] = testRandGen.nextLong();
+        } while (!BigInteger.valueOf(values[i]).gcd(BigInteger.valueOf(mod))
+            .equals(BigInteger.ONE));
+      }
+      long[] inverses = ModularInverse.inverseAll(values, mod);
+      for (int i = 0; i < values.length; i++) {
+        assertEquals(BigInteger.valueOf(values[i]).modInverse(BigInteger.valueOf(mod))
+            .longValue(), inverses[i]);
+      }
+    }
+
+    BigInteger m = BigInteger.probablePrime(512, testRandGen).multiply(BigInteger.valueOf(4));
+    BigInteger[] values = new BigInteger[20];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = new BigInteger(600, testRandGen).setBit(0);
+      assertEquals(values[i].modInverse(m), ModularInverse.inverse(values[i], m));
+    }
+    BigInteger[] inverses = ModularInverse.inverseAll(values, m);
+    for (int i = 0; i < values.length; i++) {
+      assertEquals(values[i].modInverse(m), inverses[i]);
+    }
+  }
+
+  @Test
+  public void testGenerateKeyPairBatch() {
+    int[] sizes = { RSASystem.SMALL_MODULUS_BITS, 1024 };
+    int[] counts = { 200, 4 };
+    for (int s = 0; s < sizes.length; s++) {
+      KeyPairBatch batch = KeyPairBatch.generate(RandomStreams.seeded(42), new ForkJoinPool(3),
+          counts[s], sizes[s]);
+      KeyPairBatch again = KeyPairBatch.generate(RandomStreams.seeded(42), new ForkJoinPool(1),
+          counts[s], sizes[s]);
+      assertEquals(counts[s], batch.size());
+      for (int i = 0; i < batch.size(); i++) {
+        BigInteger p = batch.getP(i);
+        BigInteger q = batch.getQ(i);
+        BigInteger phiOfN = p.subtract(BigInteger.ONE).multiply(q.subtract(BigInteger.ONE));
+        assertEquals(batch.getN(i), p.multiply(q));
+        assertEquals(BigInteger.ONE, BigInteger.valueOf(batch.getE(i)).multiply(batch.getD(i))
+            .mod(phiOfN));
+        assertEquals(q.modInverse(p), batch.getQInv(i));
+        assertEquals(batch.getD(i).mod(p.subtract(BigInteger.ONE)), batch.getDP(i));
+        assertEquals(batch.getD(i).mod(q.subtract(BigInteger.ONE)), batch.getDQ(i));
+        assertEquals(batch.getN(i), again.getN(i));
+      }
+    }
+    KeyPairBatch offHeap = new KeyPairBatch(1, 1024, true);
+    RSAKeyPair pair = new RSAKeyGenerator(1024, testRandGen).generate();
+    offHeap.set(0, pair);
+    assertTrue(offHeap.isOffHeap());
+    assertEquals(pair.getD(), offHeap.getKeyPair(0).getD());
+    assertEquals(pair.getPrivateCrtKey().getDQ(), offHeap.getDQ(0));
+    try {
+      offHeap.set(0, new RSAKeyGenerator(1024, 3, testRandGen).generate());
+      fail("A three-prime key was stored as p and q");
+    } catch (IllegalArgumentException e) {
+      //expected
+    }
+    assertEquals(pair.getN(), offHeap.getN(0));
+
+    RandomStreams streams = RandomStreams.seeded(42);
+    assertNotEquals(streams.stream(0).nextLong(), streams.derive(1).stream(0).nextLong());
+    assertEquals(streams.derive(1).stream(3).nextLong(), streams.derive(1).stream(3).nextLong());
+  }
+
+  @Test
+  public void testBatchExponentiationMatchesSingleValues() {
+    int count = 1000;
+    int[] bases = new int[count];
+    int[] exponents = new int[count];
+    int[] moduli = new int[count];
+    int[] results = new int[count];
+    for (int i = 0; i < count; i++) {
+      //mostly odd moduli, with a few even ones and exponents of every length
+      moduli[i] = 1 + testRandGen.nextInt(Integer.MAX_VALUE) | (i % 10 == 0 ? 0 : 1);
+      bases[i] = testRandGen.nextInt();
+      exponents[i] = testRandGen.nextInt(Integer.MAX_VALUE) >>> testRandGen.nextInt(31);
+    }
+    BatchExponentiation.pow(bases, exponents, moduli, results);
+    for (int i = 0; i < count; i++) {
+      assertEquals(RSASystem.fastExponentiation(bases[i], exponents[i], moduli[i]), results[i]);
+    }
+
+    int[] witnesses = new int[count];
+    for (int i = 0; i < count; i++) {
+      int candidate = 3 + testRandGen.nextInt(i % 2 == 0 ? 1 << 30 : 1000);
+      exponents[i] = candidate - 1;
+      witnesses[i] = 1 + testRandGen.nextInt(candidate - 1);
+    }
+    boolean[] perhapsPrime = BatchExponentiation.isPerhapsPrime(witnesses, exponents);
+    for (int i = 0; i < count; i++) {
+      assertEquals(RSASystem.isPerhapsPrime(witnesses[i], exponents[i]), perhapsPrime[i]);
+    }
+  }
+
+  @Test
+  public void testCertificateIssuerSignsConcurrentRequests() throws Exception {
+    final int[] trent = RSASystem.getPrimesAndKeyPairs(new RunContext(testRandGen), false);
+    ExponentiationEngine[] engines = { ExponentiationEngine.SCALAR, ExponentiationEngine.LANES };
+    for (ExponentiationEngine engine : engines) {
+      final CertificateIssuer issuer = new CertificateIssuer(trent, engine, 64, 100, 1024);
+      try {
+        ExecutorService requesters = Executors.newFixedThreadPool(4);
+        List<Future<Certificate>> certificates = new ArrayList<Future<Certificate>>();
+        for (int i = 0; i < 400; i++) {
+          final int n = 4097 + 2 * i;
+          certificates.add(requesters.submit(new Callable<Certificate>() {
+            @Override
+            public Certificate call() throws InterruptedException {
+              return issuer.issue("Alice", n, 3);
+            }
+          }));
+        }
+        requesters.shutdown();
+        for (Future<Certificate> certificate : certificates) {
+          Certificate c = certificate.get();
+          assertTrue(c.verify(trent[3], trent[2]));
+          assertEquals(RSASystem.sign(null, c.getHash(), trent[4], trent[2]), c.getSignature());
+        }
+
+        //the endpoint binds the loopback address, which may be ::1
+        int port = issuer.startEndpoint(0);
+        String host = InetAddress.getLoopbackAddress().getHostAddress();
+        URL url = new URL("http", host, port, CertificateIssuer.ENDPOINT_PATH
+            + "?name=Alice&n=4097&e=3");
+        BufferedReader in = new BufferedReader(new InputStreamReader(url.openStream(), "UTF-8"));
+        try {
+          Certificate expected = certificates.get(0).get();
+          assertEquals(String.format("h(r) = %d, s = %d", expected.getHash(),
+              expected.getSignature()), in.readLine());
+        } finally {
+          in.close();
+        }
+        url = new URL("http", host, port, CertificateIssuer.ENDPOINT_PATH
+            + "?name=Alice+%26+Bob%3D&n=4097&e=3");
+        in = new BufferedReader(new InputStreamReader(url.openStream(), "UTF-8"));
+        try {
+          Certificate expected = issuer.issue("Alice & Bob=", 4097, 3);
+          assertEquals(String.format("h(r) = %d, s = %d", expected.getHash(),
+              expected.getSignature()), in.readLine());
+        } finally {
+          in.close();
+        }
+      } finally {
+        issuer.close();
+      }
+      try {
+        issuer.submit("Bob", 4097, 3).get();
+        fail("A closed issuer must reject requests");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof RejectedExecutionException);
+      }
+    }
+  }
+
+  @Test
+  public void testSignatureVerifierCachesResults() {
+    int[] trent = RSASystem.getPrimesAndKeyPairs(new RunContext(testRandGen), false);
+    int count = 100;
+    int[] hashes = new int[count];
+    int[] signatures = new int[count];
+    int[] exponents = new int[count];
+    int[] moduli = new int[count];
+    for (int i = 0; i < count; i++) {
+      hashes[i] = i;
+      signatures[i] = RSASystem.sign(null, i, trent[4], trent[2]);
+      //every third signature is wrong
+      if (i % 3 == 0) {
+        signatures[i] = (signatures[i] + 1) % trent[2];
+      }
+      exponents[i] = trent[3];
+      moduli[i] = trent[2];
+    }
+    SignatureVerifier verifier = new SignatureVerifier(32);
+    boolean[] valid = verifier.verifyAll(hashes, signatures, exponents, moduli);
+    for (int i = 0; i < count; i++) {
+      assertEquals(i % 3 != 0, valid[i]);
+    }
+    assertEquals(0, verifier.getHitCount());
+    assertEquals(count, verifier.getMissCount());
+    assertTrue(verifier.getEvictionCount() > 0);
+    assertTrue(verifier.size() <= 32 + 16);
+
+    assertTrue(verifier.verify(hashes[1], signatures[1], trent[3], trent[2]));
+    assertTrue(verifier.verify(hashes[1], signatures[1], trent[3], trent[2]));
+    assertEquals(1, verifier.getHitCount());
+    assertFalse(verifier.verify(hashes[3], signatures[3], trent[3], trent[2]));
+  }
+
+  @Test
+  public void testKeyStoreFileRoundTrip() throws Exception {
+    File directory = Files.createTempDirectory("keystore").toFile();
+    int[] sizes = { RSASystem.SMALL_MODULUS_BITS, 1024 };
+    int[] counts = { 3000, 3 };
+    for (int s = 0; s < sizes.length; s++) {
+      KeyPairBatch batch = KeyPairBatch.generate(RandomStreams.seeded(7), ForkJoinPool.commonPool(),
+          counts[s], sizes[s]);
+      File path = new File(directory, "keys" + sizes[s]);
+      KeyStoreFile.write(path, batch);
+      KeyStoreFile store = KeyStoreFile.open(path);
+      try {
+        assertEquals(counts[s], store.size());
+        assertEquals(sizes[s], store.getModulusBits());
+        for (int i = 0; i < store.size(); i++) {
+          assertEquals(batch.getE(i), store.getE(i));
+          assertEquals(batch.getN(i), store.getN(i));
+          assertEquals(batch.getD(i), store.getD(i));
+          assertEquals(batch.getP(i), store.getP(i));
+          assertEquals(batch.getQ(i), store.getQ(i));
+          assertEquals(batch.getDP(i), store.getDP(i));
+          assertEquals(batch.getDQ(i), store.getDQ(i));
+          assertEquals(batch.getQInv(i), store.getQInv(i));
+        }
+        RSAKeyPair pair = store.getKeyPair(counts[s] - 1);
+        assertEquals(batch.getDP(counts[s] - 1), pair.getPrivateCrtKey().getDP());
+        BigInteger m = BigInteger.valueOf(12345).mod(pair.getN());
+        assertEquals(m, pair.getPrivateCrtKey().sign(m.modPow(pair.getE(), pair.getN())));
+      } finally {
+        store.close();
+      }
+    }
+    File corrupt = new File(directory, "corrupt");
+    Files.write(corrupt.toPath(), new byte[KeyStoreFile.HEADER_SIZE]);
+    try {
+      KeyStoreFile.open(corrupt);
+      fail("A file without the magic number was opened");
+    } catch (IOException e) {
+      //expected
+    }
+    byte[] bytes = Files.readAllBytes(new File(directory, "keys" + sizes[0]).toPath());
+    //the offset of the second record now points into the first
+    bytes[KeyStoreFile.HEADER_SIZE + Long.BYTES] -= Long.BYTES;
+    Files.write(corrupt.toPath(), bytes);
+    try {
+      KeyStoreFile.open(corrupt);
+      fail("A file with a corrupt index was opened");
+    } catch (IOException e) {
+      //expected
+    }
+  }
+
+  @Test
+  public void testFileEncryptorRoundTrip() throws Exception {
+    File directory = Files.createTempDirectory("encrypted").toFile();
+    File plain = new File(directory, "plain");
+    byte[] data = new byte[100003];
+    testRandGen.nextBytes(data);
+    Files.write(plain.toPath(), data);
+    RSAKeyPair[] keys = { RSAKeyPair.fromIntArray(RSASystem.getPrimesAndKeyPairs(
+        new RunContext(testRandGen), false)), new RSAKeyGenerator(1024, testRandGen).generate(),
+        new RSAKeyGenerator(2048, 3, testRandGen).generate() };
+    for (RSAKeyPair key : keys) {
+      //small chunks so that the pipeline has many chunks in flight
+      FileEncryptor encryptor = new FileEncryptor(key, 3, 4096, testRandGen);
+      for (FileEncryptor.Mode mode : FileEncryptor.Mode.values()) {
+        if (mode == FileEncryptor.Mode.HYBRID
+            && key.getModulusBits() < FileEncryptor.MIN_HYBRID_MODULUS_BITS) {
+          try {
+            encryptor.encrypt(plain, new File(directory, "encrypted"), mode);
+            fail("A session key was wrapped with a key too small to pad it");
+          } catch (IllegalArgumentException e) {
+            //expected
+          }
+          continue;
+        }
+        File encrypted = new File(directory, "encrypted");
+        File decrypted = new File(directory, "decrypted");
+        encryptor.encrypt(plain, encrypted, mode);
+        assertFalse(Arrays.equals(data, Files.readAllBytes(encrypted.toPath())));
+        encryptor.decrypt(encrypted, decrypted);
+        assertArrayEquals(data, Files.readAllBytes(decrypted.toPath()));
+      }
+    }
+    //decryption is not counted as signing
+    Metrics.GLOBAL.setEnabled(true);
+    try {
+      Metrics.GLOBAL.reset();
+      FileEncryptor encryptor = new FileEncryptor(keys[0], 1);
+      encryptor.encrypt(plain, new File(directory, "counted"), FileEncryptor.Mode.BLOCK);
+      encryptor.decrypt(new File(directory, "counted"), new File(directory, "counted.dec"));
+      assertEquals(0, Metrics.GLOBAL.snapshot().getSignatureLatency().getCount());
+    } finally {
+      Metrics.GLOBAL.setEnabled(false);
+    }
+    File empty = new File(directory, "empty");
+    Files.write(empty.toPath(), new byte[0]);
+    FileEncryptor encryptor = new FileEncryptor(keys[0], 2);
+    encryptor.encrypt(empty, new File(directory, "empty.enc"), FileEncryptor.Mode.BLOCK);
+    encryptor.decrypt(new File(directory, "empty.enc"), new File(directory, "empty.dec"));
+    assertEquals(0, new File(directory, "empty.dec").length());
+    try {
+      encryptor.decrypt(plain, new File(directory, "garbage"));
+      fail("A file without a header was decrypted");
+    } catch (IOException e) {
+      //expected
+    }
+  }
+
 }